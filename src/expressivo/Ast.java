@@ -1,6 +1,9 @@
 package expressivo;
 
-import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 
 import lib6005.parser.ParseTree;
@@ -8,69 +11,110 @@ import lib6005.parser.ParseTree;
 
 public class Ast {
 
-    // ROOT, SUM, PRODUCT, PRIMITIVE, NUMBER, VARIABLE, WHITESPACE 
-    
+    // ROOT, SUM, PRODUCT, PRIMITIVE, NUMBER, VARIABLE, WHITESPACE
+
+    /*
+     * A parse tree node whose children are being built.
+     */
+    private static class Frame {
+        final ParseTree<MathExpression> tree;
+        final List<ParseTree<MathExpression>> children;
+        final List<Expression> built = new ArrayList<>();
+
+        Frame(ParseTree<MathExpression> tree) {
+            this.tree = tree;
+            this.children = operands(tree);
+        }
+    }
+
+    /*
+     * Builds the AST bottom up, keeping the parse tree nodes it is inside of on an explicit stack
+     * instead of recursing, so nesting depth is limited only by the heap.
+     */
     static Expression buildAST(ParseTree<MathExpression> tree) {
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(tree));
+        while (true) {
+            Frame top = stack.peek();
+            if (top.built.size() < top.children.size()) {
+                stack.push(new Frame(top.children.get(top.built.size())));
+                continue;
+            }
+            stack.pop();
+            Expression expression = combine(top.tree, top.built);
+            if (stack.isEmpty()) {
+                return expression;
+            }
+            stack.peek().built.add(expression);
+        }
+    }
+
+    /*
+     * Returns the children of tree that its Expression is built from.
+     */
+    private static List<ParseTree<MathExpression>> operands(ParseTree<MathExpression> tree) {
         switch (tree.getName()) {
-        
+
         case NUMBER:
-            // System.out.println(tree.getContents() );
-            return new NonNegativeNum ( new BigDecimal( tree.getContents()));   //  new Number(Integer.parseInt(tree.getContents()));
         case VARIABLE:
-            return new Variable (tree.getContents());
+            return Collections.emptyList();
         case PRIMITIVE:
-            
+
            List< ParseTree<MathExpression>> sum =  tree.childrenByName(MathExpression.SUM);
-            
-           if (!sum.isEmpty()) 
-               return buildAST(sum.get(0));
-           
+
+           if (!sum.isEmpty())
+               return sum.subList(0, 1);
+
            List< ParseTree<MathExpression>> num = tree.childrenByName(MathExpression.NUMBER);
-           
+
            if (!num.isEmpty())
-               return buildAST(num.get(0));
-           
+               return num.subList(0, 1);
+
            List< ParseTree<MathExpression>> var = tree.childrenByName(MathExpression.VARIABLE);
-           
+
            if (!var.isEmpty())
-               return buildAST(var.get(0));
-           
+               return var.subList(0, 1);
+
+           throw new RuntimeException();
         case SUM:
-            boolean first = true;
-            Expression result = null;
-            for (ParseTree<MathExpression> child : tree.childrenByName(MathExpression.PRODUCT)) {
-                if (first) {
-                    result = buildAST(child);
-                    first = false;
-                } else {
-                    result = new Sum(result, buildAST(child));
-                }
-            }
-            if (first)
-                throw new RuntimeException();
-            return result;
+            return tree.childrenByName(MathExpression.PRODUCT);
         case ROOT:
-            return buildAST(tree.childrenByName(MathExpression.SUM).get(0));
-            
+            return tree.childrenByName(MathExpression.SUM).subList(0, 1);
+        case PRODUCT:
+            return tree.childrenByName(MathExpression.PRIMITIVE);
         case WHITESPACE:
             throw new RuntimeException();
+        }
+
+        throw new RuntimeException();
+    }
+
+    /*
+     * Returns the Expression for tree, given the Expressions built from its operands.
+     */
+    private static Expression combine(ParseTree<MathExpression> tree, List<Expression> built) {
+        switch (tree.getName()) {
+
+        case NUMBER:
+            String digits = tree.getContents();
+            return Interner.intern(NonNegativeNum.parse(digits, 0, digits.length()));
+        case VARIABLE:
+            return Expression.make(tree.getContents());
+        case PRIMITIVE:
+        case ROOT:
+            return built.get(0);
+        case SUM:
+            if (built.isEmpty())
+                throw new RuntimeException();
+            return Expression.sumOf(built);
         case PRODUCT:
-            first = true; 
-            result = null;
-            for (ParseTree <MathExpression> child : tree.childrenByName(MathExpression.PRIMITIVE)) {
-                if (first) {
-                    result = buildAST(child);
-                    first = false;
-                }
-                else {
-                    result = new Product(result, buildAST(child) );
-                }
-            }
-            if (first)
+            if (built.isEmpty())
                 throw new RuntimeException();
-            return result; 
+            return Expression.productOf(built);
+        case WHITESPACE:
+            throw new RuntimeException();
         }
-        
+
         throw new RuntimeException();
     }
 }
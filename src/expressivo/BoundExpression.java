@@ -0,0 +1,454 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable Expression whose variables have been resolved to slots of a double[] array, so
+ * that it can be evaluated over many different variable values without hashing Variables,
+ * allocating BigDecimals or building new Expressions.
+ *
+ * Evaluation uses primitive double arithmetic, so results are rounded as Java double arithmetic
+ * rounds them, and may differ slightly from the exact BigDecimal results of simplify.
+ */
+public class BoundExpression {
+
+    /*
+     * Most rows evaluateBatch computes at a time. Each scratch level gets one buffer of this many
+     * doubles.
+     */
+    private static final int BATCH_BLOCK = 256;
+
+    /*
+     * Most doubles evaluateBatch allocates for scratch buffers, unless the expression needs more
+     * levels than that; deep expressions are evaluated in shorter blocks to stay within it.
+     */
+    private static final int BATCH_SCRATCH = 1 << 16;
+
+    private static final byte CONSTANT = 0;
+    private static final byte VARIABLE = 1;
+    private static final byte SUM = 2;
+    private static final byte PRODUCT = 3;
+
+    private final List<Variable> variables;
+    private final byte[] ops;
+    private final int[] operands;
+    private final int[] ends;
+    private final double[] constants;
+    private final int height;
+    private final int levels;
+
+    /*
+     * Rep invariant:
+     * variables has no duplicates.
+     * ops, operands, ends and constants all have the same length n > 0, and describe the nodes of the
+     * expression in prefix order: node 0 is the root, and the children of node i are stored consecutively
+     * after it, the first at i + 1 and each following one at ends[] of the one before.
+     * For every node i, i < ends[i] <= n, and ends[i] is the index just past the subtree rooted at i.
+     * If ops[i] == CONSTANT, constants[i] is the node's value.
+     * If ops[i] == VARIABLE, 0 <= operands[i] < variables.size() is the node's slot.
+     * If ops[i] == SUM or PRODUCT, operands[i] >= 2 is the node's number of children.
+     * height is the number of edges on the longest path from node 0 down to a leaf.
+     * levels is the number of scratch buffers evaluateBatch needs: 1 for a leaf, and for a Sum or
+     * Product the most of its first child's levels and 1 + each other Sum or Product child's levels.
+     *
+     * Abstraction Function: represents the expression whose nodes are described by ops, operands, ends
+     * and constants, with the variable in slot k being variables.get(k).
+     *
+     * Safety from rep exposure argument: all arrays are created by bind and never returned.
+     * variables is an unmodifiable copy of the caller's list, and Variables are immutable.
+     */
+
+    private void checkRep() {
+        int n = ops.length;
+        assert n > 0;
+        assert operands.length == n && ends.length == n && constants.length == n;
+        assert ends[0] == n;
+        assert height >= 0 && height < n;
+        assert levels >= 1 && levels <= n;
+        assert variables.size() == new HashSet<>(variables).size();
+        for (int i = 0; i < n; i ++) {
+            assert i < ends[i] && ends[i] <= n;
+            if (ops[i] == VARIABLE) {
+                assert 0 <= operands[i] && operands[i] < variables.size();
+            } else if (ops[i] == SUM || ops[i] == PRODUCT) {
+                assert operands[i] >= 2;
+            }
+        }
+    }
+
+    private BoundExpression(List<Variable> variables, byte[] ops, int[] operands, int[] ends, double[] constants,
+            int height, int levels) {
+        this.variables = variables;
+        this.ops = ops;
+        this.operands = operands;
+        this.ends = ends;
+        this.constants = constants;
+        this.height = height;
+        this.levels = levels;
+        checkRep();
+    }
+
+    /**
+     * Resolve the variables of an expression to slots.
+     *
+     * @param expression the expression to bind
+     * @param variables the variables to bind, without duplicates; variables.get(k) is read from
+     *                  slot k of the values passed to evaluate. Must include every variable of expression,
+     *                  and may include others.
+     * @return a BoundExpression of expression over variables
+     * @throws IllegalArgumentException if variables has duplicates, or misses a variable of expression
+     */
+    static BoundExpression bind(Expression expression, List<Variable> variables) {
+        Map<Variable, Integer> slots = new HashMap<>();
+        for (Variable var : variables) {
+            if (slots.put(var, slots.size()) != null) {
+                throw new IllegalArgumentException("variable " + var + " is bound twice");
+            }
+        }
+        Builder builder = new Builder(slots);
+        builder.add(expression);
+        return builder.build(Collections.unmodifiableList(new ArrayList<>(variables)));
+    }
+
+    /*
+     * Lays nodes out in prefix order, in one walk of the expression.
+     */
+    private static class Builder implements Traversal.Visitor<RuntimeException> {
+        private final Map<Variable, Integer> slots;
+        private final List<Expression> nodes = new ArrayList<>();
+        private final List<Integer> endList = new ArrayList<>();
+        // indices of the nodes entered but not yet left, innermost first
+        private final Deque<Integer> open = new ArrayDeque<>();
+
+        Builder(Map<Variable, Integer> slots) {
+            this.slots = slots;
+        }
+
+        void add(Expression e) {
+            Traversal.walk(e, this);
+        }
+
+        @Override
+        public boolean enter(Expression e, Expression parent, int index) {
+            open.push(nodes.size());
+            nodes.add(e);
+            endList.add(-1);
+            return true;
+        }
+
+        @Override
+        public void leave(Expression e, Expression parent, int index) {
+            endList.set(open.pop(), nodes.size());
+        }
+
+        BoundExpression build(List<Variable> variables) {
+            int n = nodes.size();
+            byte[] ops = new byte[n];
+            int[] operands = new int[n];
+            int[] ends = new int[n];
+            double[] constants = new double[n];
+            for (int i = 0; i < n; i ++) {
+                Expression e = nodes.get(i);
+                ends[i] = endList.get(i);
+                if (e instanceof NonNegativeNum) {
+                    ops[i] = CONSTANT;
+                    constants[i] = ((NonNegativeNum) e).doubleValue();
+                } else if (e instanceof Variable) {
+                    Integer slot = slots.get(e);
+                    if (slot == null) {
+                        throw new IllegalArgumentException("variable " + e + " is not bound");
+                    }
+                    ops[i] = VARIABLE;
+                    operands[i] = slot;
+                } else {
+                    ops[i] = e instanceof Sum ? SUM : PRODUCT;
+                    operands[i] = Traversal.children(e).size();
+                }
+            }
+            // children come after their parent, so a reverse scan sees every child first
+            int[] heights = new int[n];
+            int[] levels = new int[n];
+            for (int i = n - 1; i >= 0; i --) {
+                levels[i] = 1;
+                int child = i + 1;
+                for (int k = 0; k < operands[i] && ops[i] >= SUM; k ++) {
+                    heights[i] = Math.max(heights[i], heights[child] + 1);
+                    levels[i] = Math.max(levels[i], k == 0 || ops[child] < SUM ? levels[child] : levels[child] + 1);
+                    child = ends[child];
+                }
+            }
+            return new BoundExpression(variables, ops, operands, ends, constants, heights[0], levels[0]);
+        }
+    }
+
+    /**
+     * @return the bound variables, where the variable at index k is read from slot k of the values
+     *         passed to evaluate
+     */
+    public List<Variable> variables() {
+        return variables;
+    }
+
+    /**
+     * Evaluate the expression.
+     *
+     * @param values the value of each bound variable, where values[k] is the value of variables().get(k)
+     * @return the value of the expression with each variable replaced by its value, computed with
+     *         double arithmetic. Summands and product terms are combined in order, left to right.
+     * @throws IllegalArgumentException if values.length != variables().size()
+     *
+     * Computes every node's value, children before parents, in one scan of the node arrays, so
+     * evaluation takes constant stack space however deep the expression is.
+     */
+    public double evaluate(double[] values) {
+        if (values.length != variables.size()) {
+            throw new IllegalArgumentException("expected " + variables.size() + " values, got " + values.length);
+        }
+        return evaluate(values, new double[ops.length]);
+    }
+
+    /*
+     * Returns the number of nodes of the expression, counting each occurrence of a shared
+     * subexpression separately.
+     */
+    int size() {
+        return ops.length;
+    }
+
+    /*
+     * Returns evaluate(values), using value, of length at least size(), as scratch for the value
+     * of every node. Takes constant stack space however deep the expression is.
+     */
+    double evaluate(double[] values, double[] value) {
+        assert values.length == variables.size() && value.length >= ops.length;
+        // children come after their parent, so a reverse scan sees every child first
+        for (int i = ops.length - 1; i >= 0; i --) {
+            switch (ops[i]) {
+            case CONSTANT:
+                value[i] = constants[i];
+                break;
+            case VARIABLE:
+                value[i] = values[operands[i]];
+                break;
+            case SUM: {
+                int child = i + 1;
+                double result = value[child];
+                for (int k = 1; k < operands[i]; k ++) {
+                    child = ends[child];
+                    result += value[child];
+                }
+                value[i] = result;
+                break;
+            }
+            default: {
+                int child = i + 1;
+                double result = value[child];
+                for (int k = 1; k < operands[i]; k ++) {
+                    child = ends[child];
+                    result *= value[child];
+                }
+                value[i] = result;
+            }
+            }
+        }
+        return value[0];
+    }
+
+    /**
+     * Evaluate the expression and its gradient, by reverse-mode automatic differentiation.
+     *
+     * @param values the value of each bound variable, where values[k] is the value of variables().get(k)
+     * @param gradient receives the partial derivatives: gradient[k] is set to the partial derivative of
+     *                 the expression with respect to variables().get(k) at values, or 0 if the expression
+     *                 does not contain that variable
+     * @return the value of the expression at values, as computed by evaluate(values)
+     * @throws IllegalArgumentException if values.length or gradient.length differs from variables().size()
+     *
+     * The node arrays serve as the tape. One forward sweep computes every node's value, children before
+     * parents, and one backward sweep pushes each node's adjoint to its children, parents before children;
+     * a Product passes its adjoint times the product of the other terms, built from prefix and suffix
+     * products so that zero terms need no special case. Takes time and space linear in the number of
+     * nodes, however many variables are bound.
+     */
+    public double gradient(double[] values, double[] gradient) {
+        if (values.length != variables.size()) {
+            throw new IllegalArgumentException("expected " + variables.size() + " values, got " + values.length);
+        }
+        if (gradient.length != variables.size()) {
+            throw new IllegalArgumentException("expected " + variables.size() + " partials, got " + gradient.length);
+        }
+        int n = ops.length;
+        double[] value = new double[n];
+        // forward sweep
+        evaluate(values, value);
+        // backward sweep: each node's only parent comes before it, so a forward scan sees every
+        // adjoint complete before passing it on
+        double[] adjoint = new double[n];
+        int[] children = new int[n];
+        adjoint[0] = 1;
+        Arrays.fill(gradient, 0);
+        for (int i = 0; i < n; i ++) {
+            switch (ops[i]) {
+            case CONSTANT:
+                break;
+            case VARIABLE:
+                gradient[operands[i]] += adjoint[i];
+                break;
+            case SUM:
+                for (int k = 0, child = i + 1; k < operands[i]; k ++, child = ends[child]) {
+                    adjoint[child] = adjoint[i];
+                }
+                break;
+            default: {
+                int arity = operands[i];
+                double prefix = adjoint[i];
+                for (int k = 0, child = i + 1; k < arity; k ++, child = ends[child]) {
+                    children[k] = child;
+                    adjoint[child] = prefix;
+                    prefix *= value[child];
+                }
+                double suffix = 1;
+                for (int k = arity - 1; k >= 0; k --) {
+                    adjoint[children[k]] *= suffix;
+                    suffix *= value[children[k]];
+                }
+            }
+            }
+        }
+        return value[0];
+    }
+
+    /**
+     * Evaluate the expression over many rows of variable values, stored by column.
+     *
+     * @param columns the values of each bound variable, where columns[k][row] is the value of
+     *                variables().get(k) in that row; every column must have out.length values
+     * @param out receives the results: out[row] is set to evaluate(values), where values[k] == columns[k][row]
+     * @throws IllegalArgumentException if columns.length != variables().size(), or some column's
+     *         length differs from out.length
+     *
+     * Rows are processed in blocks. Every Sum and Product in a block is computed with one tight loop
+     * per operand over lane-wide scratch buffers, which the JIT compiles to SIMD instructions where
+     * the hardware has them, and the scratch buffers are reused for every block. The expression is
+     * walked with an explicit stack, so evaluation takes constant stack space however deep it is.
+     */
+    public void evaluateBatch(double[][] columns, double[] out) {
+        if (columns.length != variables.size()) {
+            throw new IllegalArgumentException("expected " + variables.size() + " columns, got " + columns.length);
+        }
+        for (double[] column : columns) {
+            if (column.length != out.length) {
+                throw new IllegalArgumentException("expected columns of " + out.length + " rows, got " + column.length);
+            }
+        }
+        int block = Math.max(1, Math.min(BATCH_BLOCK, BATCH_SCRATCH / levels));
+        double[][] scratch = new double[levels][Math.min(block, out.length)];
+        int[] frames = new int[4 * (height + 1)];
+        for (int from = 0; from < out.length; from += block) {
+            int length = Math.min(block, out.length - from);
+            evaluateBlock(columns, from, length, scratch, frames);
+            System.arraycopy(scratch[0], 0, out, from, length);
+        }
+    }
+
+    /*
+     * Sets scratch[0][0..length) to the values of the expression for rows from..from+length.
+     *
+     * Walks the Sums and Products depth first with an explicit stack of frames, 4 ints each: the node,
+     * its scratch level, the index k of its next child, and that child. A node accumulates its
+     * result in scratch[level], computing its first child there too and each later Sum or Product
+     * child in scratch[level+1]; leaf children are read in place.
+     */
+    private void evaluateBlock(double[][] columns, int from, int length, double[][] scratch, int[] frames) {
+        if (ops[0] < SUM) {
+            loadLeaf(0, columns, from, length, scratch[0]);
+            return;
+        }
+        int top = 0;
+        frames[0] = 0;
+        frames[1] = 0;
+        frames[2] = 0;
+        frames[3] = 1;
+        boolean returned = false;
+        while (top >= 0) {
+            int node = frames[top], level = frames[top + 1], k = frames[top + 2], child = frames[top + 3];
+            double[] result = scratch[level];
+            boolean sum = ops[node] == SUM;
+            if (returned) {
+                // child k, a Sum or Product, has just been computed
+                if (k > 0) {
+                    combine(sum, result, scratch[level + 1], 0, length);
+                }
+                k ++;
+                child = ends[child];
+                returned = false;
+            }
+            while (k < operands[node] && ops[child] < SUM) {
+                if (k == 0) {
+                    loadLeaf(child, columns, from, length, result);
+                } else if (ops[child] == VARIABLE) {
+                    combine(sum, result, columns[operands[child]], from, length);
+                } else {
+                    double c = constants[child];
+                    if (sum) {
+                        for (int i = 0; i < length; i ++) {
+                            result[i] += c;
+                        }
+                    } else {
+                        for (int i = 0; i < length; i ++) {
+                            result[i] *= c;
+                        }
+                    }
+                }
+                k ++;
+                child = ends[child];
+            }
+            if (k == operands[node]) {
+                top -= 4;
+                returned = true;
+                continue;
+            }
+            frames[top + 2] = k;
+            frames[top + 3] = child;
+            top += 4;
+            frames[top] = child;
+            frames[top + 1] = k == 0 ? level : level + 1;
+            frames[top + 2] = 0;
+            frames[top + 3] = child + 1;
+        }
+    }
+
+    /*
+     * Sets result[0..length) to the values of leaf node for rows from..from+length.
+     */
+    private void loadLeaf(int node, double[][] columns, int from, int length, double[] result) {
+        if (ops[node] == CONSTANT) {
+            Arrays.fill(result, 0, length, constants[node]);
+        } else {
+            System.arraycopy(columns[operands[node]], from, result, 0, length);
+        }
+    }
+
+    /*
+     * Adds or multiplies operand[offset..offset+length) into result[0..length), element by element.
+     */
+    private static void combine(boolean sum, double[] result, double[] operand, int offset, int length) {
+        if (sum) {
+            for (int i = 0; i < length; i ++) {
+                result[i] += operand[offset + i];
+            }
+        } else {
+            for (int i = 0; i < length; i ++) {
+                result[i] *= operand[offset + i];
+            }
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package expressivo;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * String-based commands provided by the expression system.
@@ -30,7 +34,23 @@ public class Commands {
      * 
      */
     public static String differentiate(String expression, String variable) {
-        return Expression.parse(expression).differentiate(new Variable(variable)).toString();
+        return differentiate(Expression.parse(expression), variable);
+    }
+    
+    /**
+     * Differentiate an expression with respect to a variable, parsing the expression through a cache.
+     * @param expression the expression to differentiate
+     * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
+     * @param cache the cache to parse expression with
+     * @return the same result as differentiate(expression, variable)
+     * @throws IllegalArgumentException if the expression or variable is invalid
+     */
+    public static String differentiate(String expression, String variable, ParseCache cache) {
+        return differentiate(cache.parse(expression), variable);
+    }
+    
+    private static String differentiate(Expression root, String variable) {
+        return root.differentiate(new Variable(variable)).toString();
     }
     
     /**
@@ -52,7 +72,22 @@ public class Commands {
      * 
      */
     public static String simplify(String expression, Map<String,Double> environment) {
-        Expression root = Expression.parse(expression);
+        return simplify(Expression.parse(expression), environment);
+    }
+    
+    /**
+     * Simplify an expression, parsing the expression through a cache.
+     * @param expression the expression to simplify
+     * @param environment maps variables to values, as for simplify(expression, environment)
+     * @param cache the cache to parse expression with
+     * @return the same result as simplify(expression, environment)
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static String simplify(String expression, Map<String,Double> environment, ParseCache cache) {
+        return simplify(cache.parse(expression), environment);
+    }
+    
+    private static String simplify(Expression root, Map<String,Double> environment) {
         Map <Variable, NonNegativeNum> env = new HashMap<>();
         
         for (Map.Entry <String,Double> entry: environment.entrySet() ) {
@@ -63,6 +98,71 @@ public class Commands {
         return result; 
     }
     
+    /**
+     * Compute the derivatives of an expression at a point, up to some order.
+     * @param expression the expression to differentiate
+     * @param variable the variable to differentiate by, a case-sensitive nonempty string of letters.
+     * @param environment maps variables to values. Variables are required to be case-sensitive nonempty
+     *         strings of letters, and environment must give a value to every variable in expression; it may
+     *         also give values to others.
+     * @param order the highest derivative to compute, nonnegative
+     * @return an array d of order + 1 doubles, where d[j] is the value in environment of expression
+     *         differentiated j times by variable, and d[0] is the value of expression, as specified by
+     *         Expression.derivativesAt
+     * @throws IllegalArgumentException if the expression or variable is invalid, order is negative, or
+     *         environment misses a variable of expression
+     * 
+     * Costs one traversal of the expression, whatever the order, instead of order successive
+     * differentiations that each grow the expression.
+     */
+    public static double[] derivativesAt(String expression, String variable, Map<String,Double> environment,
+            int order) {
+        Map<Variable, Double> point = new HashMap<>();
+        for (Map.Entry<String,Double> entry : environment.entrySet()) {
+            point.put(new Variable(entry.getKey()), entry.getValue());
+        }
+        return Expression.parse(expression).derivativesAt(new Variable(variable), point, order);
+    }
+    
+    /**
+     * Evaluate an expression in many environments in parallel.
+     * @param expression the expression to evaluate
+     * @param environments each maps variables to values. Variables are required to be case-sensitive nonempty
+     *         strings of letters, and every environment must give a value to every variable in expression;
+     *         it may also give values to other variables. Values must be nonnegative numbers.
+     * @param pool the pool to run the evaluation on
+     * @return an array whose element i is the value of expression after substituting every variable v with
+     *         environments.get(i).get(v), computed with double arithmetic as specified by
+     *         BoundExpression.evaluate.
+     * @throws IllegalArgumentException if the expression is invalid, or an environment misses one of its variables
+     * 
+     * The expression is parsed and bound once. The environments are split adaptively among the pool's
+     * workers, and each result is written directly into its index of the returned array.
+     */
+    public static double[] evaluateAll(String expression, List<Map<String,Double>> environments, ForkJoinPool pool) {
+        Expression root = Expression.parse(expression);
+        List<Variable> variables = new ArrayList<>(root.variables());
+        List<String> names = new ArrayList<>();
+        for (Variable variable : variables) {
+            names.add(variable.toString());
+        }
+        List<Map<String,Double>> envs = environments instanceof RandomAccess ? environments : new ArrayList<>(environments);
+        double[] results = new double[envs.size()];
+        pool.invoke(new ParallelEvaluation(root.bind(variables), names, envs, results, 0, results.length));
+        return results;
+    }
+    
+    /**
+     * Evaluate an expression in many environments in parallel, on the common fork/join pool.
+     * @param expression the expression to evaluate
+     * @param environments each maps variables to values, as for evaluateAll(expression, environments, pool)
+     * @return the same result as evaluateAll(expression, environments, ForkJoinPool.commonPool())
+     * @throws IllegalArgumentException if the expression is invalid, or an environment misses one of its variables
+     */
+    public static double[] evaluateAll(String expression, List<Map<String,Double>> environments) {
+        return evaluateAll(expression, environments, ForkJoinPool.commonPool());
+    }
+    
     /* Copyright (c) 2015-2017 MIT 6.005 course staff, all rights reserved.
      * Redistribution of original or derived work requires permission of course staff.
      */
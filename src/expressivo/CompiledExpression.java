@@ -0,0 +1,256 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * An immutable Expression compiled into a tree of specialised closures over a double[] array of
+ * variable values.
+ *
+ * Each Sum and Product becomes one closure that calls its operands' closures directly, with
+ * separate closures for two, three and four operands so that they are unrolled, and every
+ * variable-free subexpression is folded into one constant ahead of time. The closures are small and
+ * monomorphic at each call site, so the JIT can inline a hot expression into straight-line code.
+ * Closures call each other once per level, so an expression more than MAX_HEIGHT levels deep is
+ * evaluated by its BoundExpression instead, which takes constant stack space however deep it is.
+ *
+ * Evaluation uses primitive double arithmetic, combining summands and product terms in order as
+ * BoundExpression.evaluate does. Constants are folded in that same order, and only whole
+ * variable-free subexpressions are folded, never constant operands of a node that also has
+ * variables, so results are exactly those of BoundExpression.evaluate.
+ */
+public class CompiledExpression {
+
+    /**
+     * Most levels an expression may have below its root to be compiled into closures.
+     */
+    public static final int MAX_HEIGHT = 1000;
+
+    private final List<Variable> variables;
+    private final ToDoubleFunction<double[]> root;
+
+    /*
+     * Rep invariant:
+     * variables has no duplicates, and root reads only slots 0 to variables.size() - 1.
+     *
+     * Abstraction Function: represents the expression that root computes, with the variable in
+     * slot k being variables.get(k).
+     *
+     * Safety from rep exposure argument: root is never returned, and the closures it is built from
+     * capture only final values and other closures. variables is an unmodifiable copy of the
+     * caller's list, and Variables are immutable.
+     */
+
+    private CompiledExpression(List<Variable> variables, ToDoubleFunction<double[]> root) {
+        this.variables = variables;
+        this.root = root;
+    }
+
+    /**
+     * Compile an expression over the given variables.
+     *
+     * @param expression the expression to compile
+     * @param variables the variables to bind, without duplicates; variables.get(k) is read from
+     *                  slot k of the values passed to evaluate. Must include every variable of expression,
+     *                  and may include others.
+     * @return a CompiledExpression of expression over variables
+     * @throws IllegalArgumentException if variables has duplicates, or misses a variable of expression
+     */
+    static CompiledExpression compile(Expression expression, List<Variable> variables) {
+        Map<Variable, Integer> slots = new HashMap<>();
+        for (Variable var : variables) {
+            if (slots.put(var, slots.size()) != null) {
+                throw new IllegalArgumentException("variable " + var + " is bound twice");
+            }
+        }
+        ToDoubleFunction<double[]> root;
+        if (height(expression) > MAX_HEIGHT) {
+            root = BoundExpression.bind(expression, variables)::evaluate;
+        } else {
+            root = new Compiler(slots).compile(expression);
+        }
+        return new CompiledExpression(Collections.unmodifiableList(new ArrayList<>(variables)), root);
+    }
+
+    /*
+     * Returns the number of edges on the longest path from e down to a leaf.
+     */
+    private static int height(Expression e) {
+        return Traversal.foldShared(e, new Traversal.Fold<Integer>() {
+            @Override
+            public Integer leaf(Expression e) {
+                return 0;
+            }
+
+            @Override
+            public Integer node(Expression e, List<Integer> heights) {
+                return 1 + Collections.max(heights);
+            }
+        });
+    }
+
+    /*
+     * Compiles one expression bottom up, once per distinct node object. A compiled operand is either
+     * a constant, recorded as a Double, or a closure that reads variables.
+     */
+    private static class Compiler implements Traversal.Fold<Object> {
+        private final Map<Variable, Integer> slots;
+
+        Compiler(Map<Variable, Integer> slots) {
+            this.slots = slots;
+        }
+
+        ToDoubleFunction<double[]> compile(Expression e) {
+            Object compiled = Traversal.foldShared(e, this);
+            if (compiled instanceof Double) {
+                return constant((Double) compiled);
+            }
+            return asClosure(compiled);
+        }
+
+        /*
+         * Returns a Double if e is a number, otherwise the closure reading e's slot.
+         */
+        @Override
+        public Object leaf(Expression e) {
+            if (e instanceof NonNegativeNum) {
+                return ((NonNegativeNum) e).doubleValue();
+            }
+            Integer slot = slots.get(e);
+            if (slot == null) {
+                throw new IllegalArgumentException("variable " + e + " is not bound");
+            }
+            final int k = slot;
+            return (ToDoubleFunction<double[]>) values -> values[k];
+        }
+
+        /*
+         * Returns a Double if e has no variables, otherwise the closure computing e from the
+         * compiled children.
+         */
+        @Override
+        public Object node(Expression e, List<Object> children) {
+            boolean isSum = e instanceof Sum;
+            boolean allConstant = true;
+            for (Object operand : children) {
+                allConstant &= operand instanceof Double;
+            }
+            if (allConstant) {
+                double folded = (Double) children.get(0);
+                for (int i = 1; i < children.size(); i ++) {
+                    folded = isSum ? folded + (Double) children.get(i) : folded * (Double) children.get(i);
+                }
+                return folded;
+            }
+            // keep constant operands in place: regrouping them would change the rounding
+            List<ToDoubleFunction<double[]>> operands = new ArrayList<>();
+            for (Object operand : children) {
+                operands.add(operand instanceof Double ? constant((Double) operand) : asClosure(operand));
+            }
+            return isSum ? sum(operands) : product(operands);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static ToDoubleFunction<double[]> asClosure(Object compiled) {
+            return (ToDoubleFunction<double[]>) compiled;
+        }
+    }
+
+    private static ToDoubleFunction<double[]> constant(double c) {
+        return values -> c;
+    }
+
+    private static ToDoubleFunction<double[]> sum(List<ToDoubleFunction<double[]>> operands) {
+        switch (operands.size()) {
+        case 1:
+            return operands.get(0);
+        case 2: {
+            ToDoubleFunction<double[]> a = operands.get(0), b = operands.get(1);
+            return values -> a.applyAsDouble(values) + b.applyAsDouble(values);
+        }
+        case 3: {
+            ToDoubleFunction<double[]> a = operands.get(0), b = operands.get(1), c = operands.get(2);
+            return values -> a.applyAsDouble(values) + b.applyAsDouble(values) + c.applyAsDouble(values);
+        }
+        case 4: {
+            ToDoubleFunction<double[]> a = operands.get(0), b = operands.get(1), c = operands.get(2),
+                    d = operands.get(3);
+            return values -> a.applyAsDouble(values) + b.applyAsDouble(values) + c.applyAsDouble(values)
+                    + d.applyAsDouble(values);
+        }
+        default: {
+            ToDoubleFunction<double[]>[] all = toArray(operands);
+            return values -> {
+                double result = all[0].applyAsDouble(values);
+                for (int i = 1; i < all.length; i ++) {
+                    result += all[i].applyAsDouble(values);
+                }
+                return result;
+            };
+        }
+        }
+    }
+
+    private static ToDoubleFunction<double[]> product(List<ToDoubleFunction<double[]>> operands) {
+        switch (operands.size()) {
+        case 1:
+            return operands.get(0);
+        case 2: {
+            ToDoubleFunction<double[]> a = operands.get(0), b = operands.get(1);
+            return values -> a.applyAsDouble(values) * b.applyAsDouble(values);
+        }
+        case 3: {
+            ToDoubleFunction<double[]> a = operands.get(0), b = operands.get(1), c = operands.get(2);
+            return values -> a.applyAsDouble(values) * b.applyAsDouble(values) * c.applyAsDouble(values);
+        }
+        case 4: {
+            ToDoubleFunction<double[]> a = operands.get(0), b = operands.get(1), c = operands.get(2),
+                    d = operands.get(3);
+            return values -> a.applyAsDouble(values) * b.applyAsDouble(values) * c.applyAsDouble(values)
+                    * d.applyAsDouble(values);
+        }
+        default: {
+            ToDoubleFunction<double[]>[] all = toArray(operands);
+            return values -> {
+                double result = all[0].applyAsDouble(values);
+                for (int i = 1; i < all.length; i ++) {
+                    result *= all[i].applyAsDouble(values);
+                }
+                return result;
+            };
+        }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ToDoubleFunction<double[]>[] toArray(List<ToDoubleFunction<double[]>> operands) {
+        return operands.toArray(new ToDoubleFunction[operands.size()]);
+    }
+
+    /**
+     * @return the bound variables, where the variable at index k is read from slot k of the values
+     *         passed to evaluate
+     */
+    public List<Variable> variables() {
+        return variables;
+    }
+
+    /**
+     * Evaluate the expression.
+     *
+     * @param values the value of each bound variable, where values[k] is the value of variables().get(k)
+     * @return the value of the expression with each variable replaced by its value, computed with
+     *         double arithmetic
+     * @throws IllegalArgumentException if values.length != variables().size()
+     */
+    public double evaluate(double[] values) {
+        if (values.length != variables.size()) {
+            throw new IllegalArgumentException("expected " + variables.size() + " values, got " + values.length);
+        }
+        return root.applyAsDouble(values);
+    }
+}
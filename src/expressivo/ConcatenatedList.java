@@ -0,0 +1,56 @@
+package expressivo;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable view of three lists one after the other, which takes constant space however long
+ * the lists are. The lists must not be modified while the view is in use.
+ */
+class ConcatenatedList<E> extends AbstractList<E> implements RandomAccess {
+
+    private final List<E> first;
+    private final List<E> second;
+    private final List<E> third;
+
+    /*
+     * Rep invariant: true.
+     *
+     * Abstraction Function: represents the sequence of the elements of first, then of second, then of third.
+     *
+     * Safety from rep exposure argument: the lists are never returned, and AbstractList rejects every
+     * mutator with UnsupportedOperationException.
+     */
+
+    /**
+     * @param first the elements that come first; must support fast random access
+     * @param second the elements that come next; must support fast random access
+     * @param third the elements that come last; must support fast random access
+     */
+    ConcatenatedList(List<E> first, List<E> second, List<E> third) {
+        this.first = first;
+        this.second = second;
+        this.third = third;
+    }
+
+    @Override
+    public E get(int index) {
+        if (index < 0) {
+            throw new IndexOutOfBoundsException("index " + index);
+        }
+        if (index < first.size()) {
+            return first.get(index);
+        }
+        index -= first.size();
+        if (index < second.size()) {
+            return second.get(index);
+        }
+        return third.get(index - second.size());
+    }
+
+    @Override
+    public int size() {
+        return first.size() + second.size() + third.size();
+    }
+}
@@ -0,0 +1,171 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Hand-written top-down parser for the grammar in Expression.g:
+ *
+ *   root ::= sum;
+ *   sum ::= product ('+' product)*;
+ *   product ::= primitive ('*' primitive)*;
+ *   primitive ::= '(' sum ')' | number | variable;
+ *   whitespace ::= [ ]+;
+ *   number ::= [0-9]+ ('.')? [0-9]* | [0-9]* ('.')? [0-9]+;
+ *   variable ::= [a-zA-Z]+;
+ *
+ * where whitespace may appear between any two tokens of root, sum, product and primitive, but
+ * never inside a number or a variable.
+ *
+ * The parser scans the input with a single char index and builds Expression nodes as it goes.
+ * Instead of recursing for each parenthesized sum, it keeps the sums it is inside of on an
+ * explicit stack, so nesting depth is limited only by the heap. Each instance parses one input
+ * and is not shared between threads.
+ */
+class DescentParser {
+
+    private final String input;
+    private int pos;
+
+    private DescentParser(String input) {
+        this.input = input;
+        this.pos = 0;
+    }
+
+    /**
+     * Parse an expression.
+     *
+     * @param input expression to parse, as defined in the PS1 handout
+     * @return expression AST for the input, equal to the one built from the lib6005 parse tree
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    static Expression parse(String input) {
+        DescentParser parser = new DescentParser(input);
+        Expression root = parser.parseRoot();
+        parser.skipWhitespace();
+        if (parser.pos < input.length()) {
+            throw parser.error("unexpected '" + input.charAt(parser.pos) + "'");
+        }
+        return root;
+    }
+
+    /*
+     * The summands and the factors of the current product parsed so far in one sum.
+     */
+    private static class OpenSum {
+        final List<Expression> summands = new ArrayList<>();
+        List<Expression> factors = new ArrayList<>();
+    }
+
+    /*
+     * Parses a sum, leaving pos just past it.
+     */
+    private Expression parseRoot() {
+        Deque<OpenSum> enclosing = new ArrayDeque<>();
+        OpenSum current = new OpenSum();
+        while (true) {
+            // a primitive starts here: open a parenthesized sum, or read a number or variable
+            skipWhitespace();
+            if (pos == input.length()) {
+                throw error("unexpected end of input");
+            }
+            char c = input.charAt(pos);
+            Expression operand;
+            if (c == '(') {
+                pos ++;
+                enclosing.push(current);
+                current = new OpenSum();
+                continue;
+            } else if (isDigit(c) || c == '.') {
+                operand = parseNumber();
+            } else if (isLetter(c)) {
+                operand = parseVariable();
+            } else {
+                throw error("unexpected '" + c + "'");
+            }
+            // the primitive is complete: close every sum that ends right after it
+            while (true) {
+                current.factors.add(operand);
+                if (accept('*')) {
+                    break;
+                }
+                current.summands.add(Expression.productOf(current.factors));
+                current.factors = new ArrayList<>();
+                if (accept('+')) {
+                    break;
+                }
+                Expression sum = Expression.sumOf(current.summands);
+                if (enclosing.isEmpty()) {
+                    return sum;
+                }
+                if (!accept(')')) {
+                    throw error("expected ')'");
+                }
+                current = enclosing.pop();
+                operand = sum;
+            }
+        }
+    }
+
+    private Expression parseNumber() {
+        int start = pos;
+        int digits = skipDigits();
+        if (pos < input.length() && input.charAt(pos) == '.') {
+            pos ++;
+            digits += skipDigits();
+        }
+        if (digits == 0) {
+            throw error("expected a digit");
+        }
+        return Interner.intern(NonNegativeNum.parse(input, start, pos));
+    }
+
+    private int skipDigits() {
+        int start = pos;
+        while (pos < input.length() && isDigit(input.charAt(pos))) {
+            pos ++;
+        }
+        return pos - start;
+    }
+
+    private Expression parseVariable() {
+        int start = pos;
+        while (pos < input.length() && isLetter(input.charAt(pos))) {
+            pos ++;
+        }
+        return Expression.make(input.substring(start, pos));
+    }
+
+    /*
+     * Skips whitespace, then consumes the next char if it is expected.
+     * Returns true iff expected was consumed.
+     */
+    private boolean accept(char expected) {
+        skipWhitespace();
+        if (pos < input.length() && input.charAt(pos) == expected) {
+            pos ++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (pos < input.length() && input.charAt(pos) == ' ') {
+            pos ++;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos + " of \"" + input + "\"");
+    }
+}
@@ -0,0 +1,274 @@
+package expressivo;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A mutable differentiation context for one variable, which memoizes the derivative of every
+ * subexpression it differentiates.
+ *
+ * Each distinct subexpression is differentiated once per context, however many times it occurs in
+ * the expressions given to the context, and every occurrence gets the same derivative object.
+ * A context can be reused for several expressions, to share work between them. Contexts are not
+ * safe for concurrent use.
+ *
+ * Differentiating by a variable that does not occur in a subexpression gives the same derivative,
+ * zero terms and all, for every such variable. Contexts with the specified product rule share it
+ * through a global table that holds both subexpressions and derivatives weakly, using the variable
+ * summaries of Occurrences to recognize such subexpressions in O(1). So on wide expressions each
+ * subexpression is differentiated by variables it does not contain at most once, whichever variable
+ * and context come first, for as long as some caller keeps that derivative.
+ */
+public class Differentiator {
+
+    /**
+     * How a Differentiator applies the product rule to products of more than two terms.
+     */
+    public enum ProductRule {
+
+        /**
+         * The product rule applied successively, as specified by Expression.differentiate:
+         * d(y1*...*yn) = (y1*...*y(n-1))*dyn + d(y1*...*y(n-1))*yn. For n terms this yields
+         * an expression with O(n^2) nodes.
+         */
+        SUCCESSIVE,
+
+        /**
+         * d(y1*...*yn) = dy1*y2*...*yn + y1*dy2*y3*...*yn + ... + y1*...*y(n-1)*dyn, the sum over i
+         * of prefix(i)*dyi*suffix(i). Every prefix and suffix is a view of the original product's
+         * terms rather than a copy, so the result uses O(n) memory. The result is a valid derivative
+         * and round-trips through toString and parse, but it is not structurally equal to the
+         * SUCCESSIVE one.
+         */
+        PREFIX_SUFFIX
+    }
+
+    private final Variable var;
+    private final ProductRule productRule;
+    private final Map<Expression, Expression> memo = new HashMap<>();
+
+    /*
+     * Maps Sums and Products to their derivatives by the variables not in them, as specified by
+     * Expression.differentiate. Both are held weakly, so the table never keeps a derivative alive:
+     * a derivative is reused only while some context's memo or caller still references it.
+     * Guarded by its own lock.
+     */
+    private static final Map<Expression, WeakReference<Expression>> constantDerivatives = new WeakHashMap<>();
+
+    /*
+     * Rep invariant:
+     * for every entry (e, d) of memo, d equals the derivative of e with respect to var, as specified
+     * by Expression.differentiate when productRule is SUCCESSIVE, and otherwise with products of more
+     * than two terms differentiated as specified by ProductRule.PREFIX_SUFFIX.
+     * for every entry (e, r) of constantDerivatives, e is a Sum or Product, and r.get() is null or
+     * equals the derivative of e with respect to any variable not in e, as specified by
+     * Expression.differentiate.
+     *
+     * Abstraction Function: represents differentiation with respect to var, together with the set
+     * of subexpressions whose derivatives (the values of memo) are already known.
+     *
+     * Safety from rep exposure argument: var is immutable, and memo is never returned. Its keys and
+     * values are immutable Expressions.
+     */
+
+    /**
+     * Create a context with no memoized derivatives, that applies the product rule as specified
+     * by Expression.differentiate.
+     *
+     * @param var the variable to differentiate with respect to
+     */
+    public Differentiator(Variable var) {
+        this(var, ProductRule.SUCCESSIVE);
+    }
+
+    /**
+     * Create a context with no memoized derivatives.
+     *
+     * @param var the variable to differentiate with respect to
+     * @param productRule how to differentiate products of more than two terms
+     */
+    public Differentiator(Variable var, ProductRule productRule) {
+        this.var = var;
+        this.productRule = productRule;
+    }
+
+    /**
+     * @return the variable this context differentiates with respect to
+     */
+    public Variable variable() {
+        return var;
+    }
+
+    /**
+     * @return how this context differentiates products of more than two terms
+     */
+    public ProductRule productRule() {
+        return productRule;
+    }
+
+    /**
+     * @return the number of distinct subexpressions whose derivatives this context has memoized
+     */
+    public int memoized() {
+        return memo.size();
+    }
+
+    /**
+     * Differentiate an expression.
+     *
+     * @param e the expression to differentiate
+     * @return an expression equal to e.differentiate(variable()), as specified by
+     *         Expression.differentiate, if productRule() is SUCCESSIVE; otherwise the derivative
+     *         of e with products of more than two terms differentiated as specified by
+     *         ProductRule.PREFIX_SUFFIX. Equal arguments get the same result object.
+     */
+    public Expression differentiate(Expression e) {
+        return Traversal.fold(e, derivation);
+    }
+
+    /*
+     * Differentiates bottom up, so every node is derived from the derivatives of its children,
+     * and memoizes every result. Memoized subexpressions are not descended into.
+     */
+    private final Traversal.Fold<Expression> derivation = new Traversal.Fold<Expression>() {
+        @Override
+        public Expression known(Expression e) {
+            Expression derivative = memo.get(e);
+            if (derivative == null && constant(e)) {
+                WeakReference<Expression> ref;
+                synchronized (constantDerivatives) {
+                    ref = constantDerivatives.get(e);
+                }
+                derivative = ref == null ? null : ref.get();
+                if (derivative != null) {
+                    memo.put(e, derivative);
+                }
+            }
+            return derivative;
+        }
+
+        @Override
+        public Expression leaf(Expression e) {
+            return remember(e, e.equals(var) ? NonNegativeNum.one : NonNegativeNum.zero);
+        }
+
+        @Override
+        public Expression node(Expression e, List<Expression> derivatives) {
+            if (e instanceof Sum) {
+                // d(y1 + ... + yn) = dy1 + ... + dyn, built in one pass
+                return remember(e, Expression.sumOf(derivatives));
+            }
+            List<Expression> terms = e.getProdTerms();
+            if (productRule == ProductRule.PREFIX_SUFFIX && terms.size() > 2) {
+                return remember(e, prefixSuffixRule(terms, derivatives));
+            }
+            return remember(e, successiveRule(terms, derivatives));
+        }
+    };
+
+    private Expression remember(Expression e, Expression derivative) {
+        memo.put(e, derivative);
+        if (constant(e)) {
+            synchronized (constantDerivatives) {
+                constantDerivatives.put(e, new WeakReference<>(derivative));
+            }
+        }
+        return derivative;
+    }
+
+    /*
+     * Returns whether e is a Sum or Product that certainly does not contain var, and whose derivative
+     * this context builds as specified by Expression.differentiate. Such a derivative is the same for
+     * every variable not in e, so it is shared through constantDerivatives with every context for such
+     * a variable.
+     */
+    private boolean constant(Expression e) {
+        return productRule == ProductRule.SUCCESSIVE
+                && (e instanceof Sum || e instanceof Product)
+                && !Occurrences.mayOccur(e, Occurrences.of(var));
+    }
+
+    /*
+     * Returns d(left*right) = left*dright + dleft*right.
+     */
+    private static Expression twoTermProductRule(Expression left, Expression dleft, Expression right,
+            Expression dright) {
+        Expression first = Expression.makeProduct(left, dright);
+        Expression second = Expression.makeProduct(dleft, right);
+        return Expression.makeSum(first, second);
+    }
+
+    /*
+     * Returns d(y1*...*yn) = (y1*...*y(n-1))*dyn + d(y1*...*y(n-1))*yn, unrolled into a loop over
+     * the prefixes y1*...*yk, whose derivatives are memoized on the way.
+     */
+    private Expression successiveRule(List<Expression> terms, List<Expression> derivatives) {
+        int length = terms.size();
+        Expression prefix = terms.get(0);
+        Expression derivative = derivatives.get(0);
+        for (int k = 1; k < length; k ++) {
+            derivative = twoTermProductRule(prefix, derivative, terms.get(k), derivatives.get(k));
+            if (k < length - 1) {
+                prefix = Expression.productOf(terms.subList(0, k + 1));
+                memo.putIfAbsent(prefix, derivative);
+            }
+        }
+        return derivative;
+    }
+
+    /*
+     * Returns the sum over i of prefix(i)*d(terms[i])*suffix(i). Each summand's terms are a view
+     * of the prefix, the derivative's own product terms and the suffix, so no term list is copied.
+     * The list hash code, variable summary and foldable flag of every prefix and suffix are computed
+     * once up front, and each summand's are combined from them and its derivative's few terms, so
+     * the whole rule takes time linear in the number of terms.
+     */
+    private static Expression prefixSuffixRule(List<Expression> terms, List<Expression> derivatives) {
+        int length = terms.size();
+        // powers[k] = 31^k, as in List.hashCode
+        int[] powers = new int[length + 1];
+        // prefixHash[i] is terms.subList(0, i).hashCode()
+        int[] prefixHash = new int[length + 1];
+        long[] prefixSummary = new long[length + 1];
+        boolean[] prefixFoldable = new boolean[length + 1];
+        powers[0] = 1;
+        prefixHash[0] = 1;
+        for (int i = 0; i < length; i ++) {
+            Expression term = terms.get(i);
+            powers[i + 1] = 31 * powers[i];
+            prefixHash[i + 1] = 31 * prefixHash[i] + term.hashCode();
+            prefixSummary[i + 1] = prefixSummary[i] | Occurrences.of(term);
+            prefixFoldable[i + 1] = prefixFoldable[i] || Occurrences.foldable(term);
+        }
+        // suffixHash[i] is the hash of terms.subList(i, length) without List.hashCode's initial 1
+        int[] suffixHash = new int[length + 1];
+        long[] suffixSummary = new long[length + 1];
+        boolean[] suffixFoldable = new boolean[length + 1];
+        for (int i = length - 1; i >= 0; i --) {
+            Expression term = terms.get(i);
+            suffixHash[i] = term.hashCode() * powers[length - 1 - i] + suffixHash[i + 1];
+            suffixSummary[i] = suffixSummary[i + 1] | Occurrences.of(term);
+            suffixFoldable[i] = suffixFoldable[i + 1] || Occurrences.foldable(term);
+        }
+        List<Expression> summands = new ArrayList<>(length);
+        for (int i = 0; i < length; i ++) {
+            List<Expression> middle = derivatives.get(i).getProdTerms();
+            int hash = prefixHash[i];
+            long summary = prefixSummary[i] | suffixSummary[i + 1];
+            boolean foldable = prefixFoldable[i] || suffixFoldable[i + 1];
+            for (Expression factor : middle) {
+                hash = 31 * hash + factor.hashCode();
+                summary |= Occurrences.of(factor);
+                foldable = foldable || Occurrences.foldable(factor);
+            }
+            hash = hash * powers[length - 1 - i] + suffixHash[i + 1];
+            List<Expression> factors = new ConcatenatedList<>(terms.subList(0, i), middle, terms.subList(i + 1, length));
+            summands.add(Interner.intern(new Product(factors, hash, summary, foldable || summary == 0)));
+        }
+        return Expression.sumOf(summands);
+    }
+}
@@ -0,0 +1,132 @@
+package expressivo;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Forward-mode automatic differentiation: evaluates an expression and its derivative with respect
+ * to one variable together, in one bottom-up traversal, by computing every node as a dual number
+ * (value, tangent).
+ *
+ * A number has tangent 0, the variable differentiated by has tangent 1, and any other variable
+ * has tangent 0. A sum adds values and tangents; a product combines its terms left to right with
+ * (u, du)*(v, dv) = (u*v, u*dv + du*v). The derivative expression itself is never built, and a
+ * subexpression shared by several parents is evaluated once.
+ */
+class DualEvaluation {
+
+    private DualEvaluation() {
+        // not instantiable
+    }
+
+    /*
+     * A dual number of doubles.
+     */
+    private static class DoubleDual {
+        final double value;
+        final double tangent;
+
+        DoubleDual(double value, double tangent) {
+            this.value = value;
+            this.tangent = tangent;
+        }
+    }
+
+    /*
+     * A dual number of exact decimals.
+     */
+    private static class ExactDual {
+        final BigDecimal value;
+        final BigDecimal tangent;
+
+        ExactDual(BigDecimal value, BigDecimal tangent) {
+            this.value = value;
+            this.tangent = tangent;
+        }
+    }
+
+    /**
+     * @param e the expression to differentiate
+     * @param var the variable to differentiate with respect to
+     * @param point maps variables to values; must give a value to every variable in e
+     * @return the derivative of e with respect to var at point, computed with double arithmetic
+     * @throws IllegalArgumentException if point misses a variable of e
+     */
+    static double derivativeAt(Expression e, Variable var, Map<Variable, Double> point) {
+        return Traversal.foldShared(e, new Traversal.Fold<DoubleDual>() {
+            @Override
+            public DoubleDual leaf(Expression leaf) {
+                if (leaf instanceof NonNegativeNum) {
+                    return new DoubleDual(((NonNegativeNum) leaf).doubleValue(), 0);
+                }
+                Double value = point.get(leaf);
+                if (value == null) {
+                    throw new IllegalArgumentException("no value for variable " + leaf);
+                }
+                return new DoubleDual(value, leaf.equals(var) ? 1 : 0);
+            }
+
+            @Override
+            public DoubleDual node(Expression node, List<DoubleDual> terms) {
+                boolean sum = node instanceof Sum;
+                double value = terms.get(0).value;
+                double tangent = terms.get(0).tangent;
+                for (int i = 1; i < terms.size(); i ++) {
+                    DoubleDual term = terms.get(i);
+                    if (sum) {
+                        value += term.value;
+                        tangent += term.tangent;
+                    } else {
+                        tangent = tangent * term.value + value * term.tangent;
+                        value *= term.value;
+                    }
+                }
+                return new DoubleDual(value, tangent);
+            }
+        }).tangent;
+    }
+
+    /**
+     * @param e the expression to differentiate
+     * @param var the variable to differentiate with respect to
+     * @param environment maps variables to values; must give a value to every variable in e
+     * @return the derivative of e with respect to var at environment, computed exactly; equal to
+     *         e.differentiate(var).simplify(environment)
+     * @throws IllegalArgumentException if environment misses a variable of e
+     */
+    static NonNegativeNum exactDerivativeAt(Expression e, Variable var, Map<Variable, NonNegativeNum> environment) {
+        BigDecimal tangent = Traversal.foldShared(e, new Traversal.Fold<ExactDual>() {
+            @Override
+            public ExactDual leaf(Expression leaf) {
+                if (leaf instanceof NonNegativeNum) {
+                    return new ExactDual(((NonNegativeNum) leaf).numericValue(), BigDecimal.ZERO);
+                }
+                NonNegativeNum value = environment.get(leaf);
+                if (value == null) {
+                    throw new IllegalArgumentException("no value for variable " + leaf);
+                }
+                return new ExactDual(value.numericValue(), leaf.equals(var) ? BigDecimal.ONE : BigDecimal.ZERO);
+            }
+
+            @Override
+            public ExactDual node(Expression node, List<ExactDual> terms) {
+                boolean sum = node instanceof Sum;
+                BigDecimal value = terms.get(0).value;
+                BigDecimal tangent = terms.get(0).tangent;
+                for (int i = 1; i < terms.size(); i ++) {
+                    ExactDual term = terms.get(i);
+                    if (sum) {
+                        value = value.add(term.value);
+                        tangent = tangent.add(term.tangent);
+                    } else {
+                        tangent = tangent.multiply(term.value).add(value.multiply(term.tangent));
+                        value = value.multiply(term.value);
+                    }
+                }
+                return new ExactDual(value, tangent);
+            }
+        }).tangent;
+        return (NonNegativeNum) Expression.make(tangent);
+    }
+}
@@ -1,12 +1,18 @@
 package expressivo;
 
-import java.io.File;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import lib6005.parser.*;
+import lib6005.parser.ParseTree;
 
 /**
  * An immutable data type representing a polynomial expression of: + and *
@@ -45,41 +51,34 @@ public interface Expression {
      * zeroes for a number. So a variable "abcd" in the input string != "AbCd", but
      * "3434.23" equals "3434.2300000" 
      * 
+     * Every node of the returned Expression is interned, so equal subtrees are the same object.
+     * 
+     * Uses the hand-written ParserKind.RECURSIVE_DESCENT parser.
+     * 
      */
     public static Expression parse(String input) {
-        lib6005.parser.Parser<MathExpression> parser = null; 
-        
-        try {
-            parser = GrammarCompiler.compile(new File (
-                    "src\\expressivo\\Expression.g" ), MathExpression.ROOT   );
-        } catch (UnableToParseException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            throw new IllegalArgumentException();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            throw new IllegalArgumentException();
-        }
-        ParseTree<MathExpression> tree = null;
-        try {
-            tree = parser.parse(input);
-        } catch (UnableToParseException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-            throw new IllegalArgumentException();
+        return parse(input, ParserKind.RECURSIVE_DESCENT);
+    }
+    
+    /**
+     * Parse an expression with a particular parser implementation.
+     * 
+     * @param input expression to parse, as defined in the PS1 handout.
+     * @param kind the parser implementation to use
+     * @return expression AST for the input, as specified by parse(String). Every ParserKind returns
+     *         equal Expressions for the same input, and rejects the same invalid inputs.
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static Expression parse(String input, ParserKind kind) {
+        switch (kind) {
+        case LIB6005:
+            ParseTree<MathExpression> tree = ExpressionParser.parse(input);
+            return Ast.buildAST(tree);
+        case RECURSIVE_DESCENT:
+            return DescentParser.parse(input);
+        default:
+            throw new IllegalArgumentException("unknown parser " + kind);
         }
-        
-        //System.out.println("String input  " + input);
-        //System.out.println("Parsed Tree     " + tree.toString()) ;
-        
-        
-        Expression root = Ast.buildAST(tree);
-        
-        // System.out.println(root.toString());
-        
-        
-        return root;
     }
     
     
@@ -144,6 +143,211 @@ public interface Expression {
      */
     public Expression simplify (Map<Variable,NonNegativeNum> environment);
     
+    /**
+     * @return the set of variables that occur in this expression, iterating in the order of their
+     *         first occurrence in toString()
+     */
+    public default Set<Variable> variables() {
+        Set<Variable> variables = new LinkedHashSet<>();
+        // a node object seen before adds no new variables, so it is not walked again
+        Set<Expression> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Traversal.walk(this, new Traversal.Visitor<RuntimeException>() {
+            @Override
+            public boolean enter(Expression e, Expression parent, int index) {
+                if (e instanceof Variable) {
+                    variables.add((Variable) e);
+                }
+                return seen.add(e);
+            }
+
+            @Override
+            public void leave(Expression e, Expression parent, int index) {
+            }
+        });
+        return variables;
+    }
+    
+    /**
+     * Checks the rep invariant of every node of this expression, each distinct node object once.
+     * Constructors check the invariant of the node they build once, and hashCode, equals and
+     * toString never check it, so this is the way to re-check a whole expression on demand.
+     * The checks are assert statements, so this does nothing unless assertions are enabled.
+     * 
+     * @throws AssertionError if some node of this expression violates its rep invariant
+     */
+    public default void validate() {
+        Set<Expression> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Traversal.walk(this, new Traversal.Visitor<RuntimeException>() {
+            @Override
+            public boolean enter(Expression e, Expression parent, int index) {
+                if (!seen.add(e)) {
+                    return false;
+                }
+                if (e instanceof Sum) {
+                    ((Sum) e).checkRep();
+                } else if (e instanceof Product) {
+                    ((Product) e).checkRep();
+                } else if (e instanceof Variable) {
+                    ((Variable) e).checkRep();
+                } else {
+                    ((NonNegativeNum) e).checkRep();
+                }
+                return true;
+            }
+
+            @Override
+            public void leave(Expression e, Expression parent, int index) {
+            }
+        });
+    }
+    
+    /**
+     * @return the polynomial equal to this expression, in sparse normal form; two expressions are
+     *         mathematically equal if and only if their polynomials are equal
+     * @throws ArithmeticException if some monomial has total degree greater than Polynomial.MAX_DEGREE
+     */
+    public default Polynomial toPolynomial() {
+        return Polynomial.of(this);
+    }
+    
+    /**
+     * Eliminates common subexpressions: rewrites this expression into an equal one in which
+     * structurally equal subtrees are the same object, so that traversals which visit each distinct
+     * node object once do the work for a repeated subtree only once.
+     * 
+     * @return the shared form of this expression, with the number of nodes it saves
+     */
+    public default SharedExpression share() {
+        return SharedExpression.share(this);
+    }
+    
+    /**
+     * Resolves the variables of this expression to slots of a double[] array, for fast repeated
+     * evaluation with different variable values.
+     * 
+     * @param variables the variables to bind, without duplicates. Must include every variable in this
+     *                  expression, and may include others.
+     * @return an evaluator of this expression, which reads the value of variables.get(k) from slot k
+     * @throws IllegalArgumentException if variables has duplicates, or misses a variable of this expression
+     */
+    public default BoundExpression bind(List<Variable> variables) {
+        return BoundExpression.bind(this, variables);
+    }
+    
+    /**
+     * Computes the gradient of this expression at a point, by reverse-mode automatic differentiation
+     * in one forward and one backward pass over the expression.
+     * 
+     * @param point maps variables to values; must give a value to every variable in this expression,
+     *              and may give values to others
+     * @return a map from each variable of point, in point's iteration order, to the partial derivative
+     *         of this expression with respect to it at point (0 for variables not in this expression),
+     *         computed with double arithmetic as specified by BoundExpression.gradient
+     * @throws IllegalArgumentException if point misses a variable of this expression
+     */
+    public default Map<Variable, Double> gradientAt(Map<Variable, Double> point) {
+        List<Variable> variables = new ArrayList<>(point.keySet());
+        double[] values = new double[variables.size()];
+        for (int k = 0; k < values.length; k ++) {
+            values[k] = point.get(variables.get(k));
+        }
+        double[] partials = new double[values.length];
+        bind(variables).gradient(values, partials);
+        Map<Variable, Double> gradient = new LinkedHashMap<>();
+        for (int k = 0; k < partials.length; k ++) {
+            gradient.put(variables.get(k), partials[k]);
+        }
+        return gradient;
+    }
+    
+    /**
+     * Computes the derivative of this expression with respect to one variable at a point, by
+     * forward-mode automatic differentiation, without building the derivative expression.
+     * 
+     * @param var the variable to differentiate with respect to
+     * @param point maps variables to values; must give a value to every variable in this expression,
+     *              and may give values to others
+     * @return the value of differentiate(var) at point, computed with double arithmetic in one
+     *         traversal of this expression
+     * @throws IllegalArgumentException if point misses a variable of this expression
+     */
+    public default double derivativeAt(Variable var, Map<Variable, Double> point) {
+        return DualEvaluation.derivativeAt(this, var, point);
+    }
+    
+    /**
+     * Computes the exact derivative of this expression with respect to one variable at a point, by
+     * forward-mode automatic differentiation, without building the derivative expression.
+     * 
+     * @param var the variable to differentiate with respect to
+     * @param environment maps variables to values; must give a value to every variable in this
+     *                    expression, and may give values to others
+     * @return a number equal to differentiate(var).simplify(environment), computed with exact decimal
+     *         arithmetic in one traversal of this expression
+     * @throws IllegalArgumentException if environment misses a variable of this expression
+     */
+    public default NonNegativeNum exactDerivativeAt(Variable var, Map<Variable, NonNegativeNum> environment) {
+        return DualEvaluation.exactDerivativeAt(this, var, environment);
+    }
+    
+    /**
+     * Computes every derivative of this expression with respect to one variable at a point, up to
+     * a given order, by evaluating truncated Taylor series, without building any derivative expression.
+     * 
+     * @param var the variable to differentiate with respect to
+     * @param point maps variables to values; must give a value to every variable in this expression,
+     *              and may give values to others
+     * @param order the highest derivative to compute, nonnegative
+     * @return an array d of order + 1 doubles, where d[j] is the value at point of this expression
+     *         differentiated j times by var (d[0] being the value of this expression), computed with
+     *         double arithmetic in one traversal of this expression
+     * @throws IllegalArgumentException if order is negative, or point misses a variable of this expression
+     */
+    public default double[] derivativesAt(Variable var, Map<Variable, Double> point, int order) {
+        return TaylorEvaluation.derivativesAt(this, var, point, order);
+    }
+    
+    /**
+     * Compiles this expression into a tree of specialised closures, with small sums and products
+     * unrolled and variable-free subexpressions folded into constants, for the fastest repeated
+     * evaluation of hot expressions.
+     * 
+     * @param variables the variables to bind, without duplicates. Must include every variable in this
+     *                  expression, and may include others.
+     * @return an evaluator of this expression, which reads the value of variables.get(k) from slot k
+     * @throws IllegalArgumentException if variables has duplicates, or misses a variable of this expression
+     */
+    public default CompiledExpression compile(List<Variable> variables) {
+        return CompiledExpression.compile(this, variables);
+    }
+    
+    /**
+     * Compiles this expression, which must have at most one variable, into coefficient form, for the
+     * fastest repeated evaluation of a curve: Horner's scheme for low degrees, and Estrin's scheme for
+     * high ones.
+     * 
+     * @param variable the variable to evaluate this expression in
+     * @return an evaluator of this expression as a function of variable
+     * @throws IllegalArgumentException if this expression has a variable other than variable
+     * @throws ArithmeticException if this expression has degree greater than Polynomial.MAX_DEGREE
+     */
+    public default UnivariateExpression compileUnivariate(Variable variable) {
+        return UnivariateExpression.compile(this, variable);
+    }
+    
+    /**
+     * Evaluates this expression, keeping the value of every subexpression so that after some variables
+     * change, only the subexpressions that depend on them are recomputed.
+     * 
+     * @param environment maps variables to values; must give a value to every variable in this
+     *                    expression, and may give values to others
+     * @return an evaluator of this expression at environment, which can be updated in place
+     * @throws IllegalArgumentException if environment misses a variable of this expression
+     */
+    public default IncrementalEvaluator incremental(Map<Variable, Double> environment) {
+        return new IncrementalEvaluator(this, environment);
+    }
+    
     /**
      * Returns an expression representing a variable (defined above in class spec)
      * 
@@ -151,20 +355,21 @@ public interface Expression {
      *                     that all of its characters be letters and the String is
      *                     non-empty.
      * @return the case-sensitive expression representing the variable with the name
-     *         variableName.
+     *         variableName. Equal variables made with this method are the same object.
      */
     public static Expression make(String variableName) {
-        return new Variable(variableName);
+        return Interner.intern(new Variable(variableName));
     }
 
     /**
      * Returns an expression representing the BigInteger number
      * 
      * @param number, must be nonnegative
-     * @return an expression representing the argument number.
+     * @return an expression representing the argument number. Equal numbers made with this
+     *         method are the same object.
      */
     public static Expression make(BigDecimal number) {
-        return new NonNegativeNum(number);
+        return Interner.intern(new NonNegativeNum(number));
     }
 
     /**
@@ -174,10 +379,10 @@ public interface Expression {
      * @param right an Expression
      * @return an expression representing the sum of left and right, where the terms
      *         belonging to left come before the terms belonging to right in
-     *         sequential order.
+     *         sequential order. Equal sums made with this method are the same object.
      */
     public static Expression makeSum(Expression left, Expression right) {
-        return new Sum(left, right);
+        return sumOf(Arrays.asList(left, right));
     }
 
     /**
@@ -188,10 +393,58 @@ public interface Expression {
      * @param right an Expression
      * @return an expression representing the product of left and right, where the
      *         terms belonging to left come before the terms belonging to right in
-     *         sequential order.
+     *         sequential order. Equal products made with this method are the same object.
      */
     public static Expression makeProduct(Expression left, Expression right) {
-        return new Product(left, right);
+        return productOf(Arrays.asList(left, right));
+    }
+    
+    /**
+     * Returns an expression representing the sum of all the given terms, in one pass over the terms.
+     * 
+     * @param terms a nonempty list of Expressions
+     * @return terms.get(0) if terms has exactly one element, otherwise an expression equal to
+     *         makeSum(...makeSum(makeSum(terms.get(0), terms.get(1)), terms.get(2))..., terms.get(n-1)),
+     *         i.e. a Sum whose summands are the summands of each term, in order. Equal sums made with
+     *         this method are the same object. Takes time linear in the number of summands.
+     * @throws IllegalArgumentException if terms is empty
+     */
+    public static Expression sumOf(List<Expression> terms) {
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("a sum needs at least one term");
+        }
+        if (terms.size() == 1) {
+            return Interner.intern(terms.get(0));
+        }
+        List<Expression> summands = new ArrayList<>(terms.size());
+        for (Expression term : terms) {
+            summands.addAll(term.getSummands());
+        }
+        return Interner.intern(new Sum(summands));
+    }
+    
+    /**
+     * Returns an expression representing the product of all the given terms, in one pass over the terms.
+     * 
+     * @param terms a nonempty list of Expressions
+     * @return terms.get(0) if terms has exactly one element, otherwise an expression equal to
+     *         makeProduct(...makeProduct(makeProduct(terms.get(0), terms.get(1)), terms.get(2))..., terms.get(n-1)),
+     *         i.e. a Product whose terms are the product terms of each term, in order. Equal products made
+     *         with this method are the same object. Takes time linear in the number of product terms.
+     * @throws IllegalArgumentException if terms is empty
+     */
+    public static Expression productOf(List<Expression> terms) {
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("a product needs at least one term");
+        }
+        if (terms.size() == 1) {
+            return Interner.intern(terms.get(0));
+        }
+        List<Expression> factors = new ArrayList<>(terms.size());
+        for (Expression term : terms) {
+            factors.addAll(term.getProdTerms());
+        }
+        return Interner.intern(new Product(factors));
     }
 
     /**
@@ -214,6 +467,18 @@ public interface Expression {
      */
     @Override
     public String toString();
+    
+    /**
+     * Writes the parsable representation of this expression to out, in one traversal of the
+     * expression and without building the text of any subexpression separately.
+     * 
+     * @param out where to write the representation
+     * @throws IOException if out throws IOException
+     * 
+     * Appends exactly the characters of toString(), so large expressions can be streamed to a
+     * Writer without materializing their text.
+     */
+    public void appendTo(Appendable out) throws IOException;
 
     /**
      * @param thatObject any object
@@ -240,38 +505,3 @@ public interface Expression {
      * staff.
      */
 }
-
-enum MathExpression {
-    // ROOT, SUM, PRODUCT, PRIMITIVE, NUMBER, VARIABLE, WHITESPACE //  , EXPRESSION
-    //ROOT, SUM, PRODUCT, PRODPRIMITIVE, SUMPRIMITIVE, NUMBER, VARIABLE, WHITESPACE, PRIMITIVE
-    ROOT, SUM, PRODUCT, PRIMITIVE, NUMBER, VARIABLE, WHITESPACE 
-
-};
-/*
- * @skip whitespace {
-    root ::= expression;
-    expression ::= sum | product | primitive;
-    sum ::= primitive ('+' primitive)+;
-    product ::= primitive ('*' primitive)+;
-    primitive ::= number | variable | '(' sum ')' | '(' product ')' | '(' primitive ')'
-}
-
-whitespace ::= [ ]+;
-number::= [0-9]+ ('.')? [0-9]* | [0-9]* ('.')? [0-9]+  ;
-variable ::= [a-z]+
- * 
- * 
- * 
- * 
- * 
- */
-
-
-
-
-
-
-
-
-
-
@@ -0,0 +1,57 @@
+package expressivo;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import lib6005.parser.GrammarCompiler;
+import lib6005.parser.ParseTree;
+import lib6005.parser.Parser;
+import lib6005.parser.UnableToParseException;
+
+/**
+ * Holder for the lib6005 parser compiled from Expression.g.
+ *
+ * The grammar is read from the classpath (next to this class) and compiled exactly once,
+ * when this class is first initialized. The JVM's class initialization guarantees that
+ * every thread sees the fully compiled parser without any further locking.
+ *
+ * A single compiled Parser is safe to share between threads: its grammar map and terms are
+ * never modified after compilation, and every call to Parser.parse(String) allocates its own
+ * ParserState, so concurrent parses do not interfere and no pool is needed.
+ */
+class ExpressionParser {
+
+    private static final String GRAMMAR = "Expression.g";
+
+    private static final Parser<MathExpression> PARSER = compileGrammar();
+
+    private ExpressionParser() {
+        // not instantiable
+    }
+
+    private static Parser<MathExpression> compileGrammar() {
+        try (InputStream grammar = ExpressionParser.class.getResourceAsStream(GRAMMAR)) {
+            if (grammar == null) {
+                throw new IllegalStateException("grammar " + GRAMMAR + " not found on the classpath");
+            }
+            return GrammarCompiler.compile(grammar, MathExpression.ROOT);
+        } catch (UnableToParseException | IOException e) {
+            throw new IllegalStateException("unable to compile grammar " + GRAMMAR, e);
+        }
+    }
+
+    /**
+     * Parse input with the shared, precompiled grammar.
+     *
+     * @param input expression to parse, as defined in the PS1 handout
+     * @return the parse tree of input, rooted at MathExpression.ROOT
+     * @throws IllegalArgumentException if input does not match the grammar
+     */
+    static ParseTree<MathExpression> parse(String input) {
+        try {
+            return PARSER.parse(input);
+        } catch (UnableToParseException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A mutable evaluator of an Expression that keeps the value of every node, and after some variables
+ * change recomputes only the nodes that depend on them.
+ *
+ * Nodes are numbered so that every node comes after its children, each distinct node object once.
+ * An index maps every variable to the leaves it appears at, and every node records its parents.
+ * An update sets the changed leaves and marks their parents dirty; dirty nodes are then recomputed
+ * lowest number first, taken from a binary min-heap, so each is recomputed once, after all its dirty
+ * children, and a node whose value does not change does not dirty its parents.
+ *
+ * A node with fewer than WIDE children is recomputed by combining them all, in order. A wider node
+ * keeps a segment tree over its children's values, a complete binary tree of partial sums or
+ * products, so a changed child updates the O(log k) partial results above it rather than all k of
+ * them. An update of d dirty nodes with c changed children in all thus takes O(d log d + c log k)
+ * time for the widest k, whatever the size of the whole expression.
+ *
+ * Evaluation uses primitive double arithmetic. Nodes with fewer than WIDE children combine them in
+ * order as BoundExpression.evaluate does; wider nodes combine them pairwise in their segment tree, so
+ * their values may differ from BoundExpression.evaluate's in the last bits. Either way a node's value
+ * depends only on the current variable values, not on the sequence of updates that led to them.
+ *
+ * Instances are not safe for concurrent use.
+ */
+public class IncrementalEvaluator {
+
+    private static final byte CONSTANT = 0;
+    private static final byte VARIABLE = 1;
+    private static final byte SUM = 2;
+    private static final byte PRODUCT = 3;
+
+    /**
+     * Fewest children of a node that keeps a segment tree over them.
+     */
+    public static final int WIDE = 16;
+
+    private final byte[] ops;
+    private final int[] childStart;
+    private final int[] children;
+    private final int[] parentStart;
+    private final int[] parents;
+    private final int[] parentSlots;
+    private final int[] treeStart;
+    private final double[] trees;
+    private final Map<Variable, int[]> leaves;
+    private final double[] values;
+    private final boolean[] dirty;
+    private final int[] heap;
+    private int heapSize = 0;
+    private int recomputed = 0;
+    private long combined = 0;
+
+    /*
+     * Rep invariant:
+     * ops and values have the same length n > 0, and node n - 1 is the root.
+     * childStart and parentStart have length n + 1, are nondecreasing, start at 0 and end at
+     * children.length and parents.length respectively.
+     * The children of node i are children[childStart[i] .. childStart[i+1]), in order, all less than i;
+     * ops[i] is SUM or PRODUCT if and only if it has children, and then it has at least two.
+     * The parents of node i are parents[parentStart[i] .. parentStart[i+1]), all greater than i, and
+     * j is a parent of i once for every time i is a child of j, and parentSlots[k] is the position of i
+     * among the children of parents[k].
+     * treeStart[i] is -1 if node i has fewer than WIDE children. Otherwise node i has k children, and
+     * trees[treeStart[i] .. treeStart[i] + 2k) is its segment tree: the slot at offset k + j holds the
+     * value of child j, the slot at offset m in 1 .. k-1 the sum or product of the slots at 2m and
+     * 2m + 1, and offset 0 is unused.
+     * Every leaf of ops VARIABLE is in exactly one array of leaves, and leaves has no other nodes.
+     * heap[0 .. heapSize) is a binary min-heap of the nodes i with dirty[i] true, each once.
+     * heapSize is 0 between public method calls, and then every segment tree holds the current
+     * values of its node's children, and for every node i with children, values[i] is the sum or
+     * product of the values of its children, in order if treeStart[i] is -1, otherwise the value at
+     * offset 1 of its segment tree.
+     *
+     * Abstraction Function: represents the expression whose nodes are described by ops and children,
+     * with every variable v having the value at the leaves leaves.get(v), and values[n-1] its value.
+     *
+     * Safety from rep exposure argument: all arrays, including the segment trees, and the map are created by the constructor and
+     * never returned.
+     */
+
+    /*
+     * Checks the whole rep invariant, in time linear in the number of nodes. Called once by the
+     * constructor; updates check only the nodes they recompute, with checkNode.
+     */
+    private void checkRep() {
+        int n = ops.length;
+        assert n > 0 && values.length == n;
+        assert childStart.length == n + 1 && parentStart.length == n + 1;
+        assert dirty.length == n && heap.length == n && heapSize == 0;
+        for (int i = 0; i < n; i ++) {
+            int arity = childStart[i + 1] - childStart[i];
+            assert (ops[i] >= SUM) == (arity >= 2);
+            assert arity == 0 || arity >= 2;
+            assert !dirty[i];
+            assert (treeStart[i] >= 0) == (arity >= WIDE);
+            for (int k = childStart[i]; k < childStart[i + 1]; k ++) {
+                assert children[k] < i;
+                assert treeStart[i] < 0
+                        || Double.compare(trees[treeStart[i] + arity + k - childStart[i]], values[children[k]]) == 0;
+            }
+            checkNode(i);
+        }
+    }
+
+    /*
+     * Checks the rep invariant at node i in O(WIDE) time: its value is up to date with its children, or
+     * with its segment tree.
+     */
+    private void checkNode(int i) {
+        assert ops[i] < SUM || childStart[i + 1] - childStart[i] >= WIDE
+                || Double.compare(values[i], compute(i)) == 0;
+        assert treeStart[i] < 0 || Double.compare(values[i], trees[treeStart[i] + 1]) == 0;
+    }
+
+    /**
+     * Create an evaluator and compute every node's value.
+     *
+     * @param expression the expression to evaluate
+     * @param environment maps variables to values; must give a value to every variable in expression,
+     *                    and may give values to others
+     * @throws IllegalArgumentException if environment misses a variable of expression
+     */
+    IncrementalEvaluator(Expression expression, Map<Variable, Double> environment) {
+        List<Expression> nodes = new ArrayList<>();
+        List<List<Integer>> childLists = new ArrayList<>();
+        Traversal.foldShared(expression, new Traversal.Fold<Integer>() {
+            @Override
+            public Integer leaf(Expression e) {
+                nodes.add(e);
+                childLists.add(Collections.emptyList());
+                return nodes.size() - 1;
+            }
+
+            @Override
+            public Integer node(Expression e, List<Integer> ids) {
+                nodes.add(e);
+                childLists.add(ids);
+                return nodes.size() - 1;
+            }
+        });
+        int n = nodes.size();
+        ops = new byte[n];
+        values = new double[n];
+        childStart = new int[n + 1];
+        parentStart = new int[n + 1];
+        Map<Variable, List<Integer>> leafLists = new HashMap<>();
+        for (int i = 0; i < n; i ++) {
+            Expression e = nodes.get(i);
+            childStart[i + 1] = childStart[i] + childLists.get(i).size();
+            for (int child : childLists.get(i)) {
+                parentStart[child + 1] ++;
+            }
+            if (e instanceof NonNegativeNum) {
+                ops[i] = CONSTANT;
+                values[i] = ((NonNegativeNum) e).doubleValue();
+            } else if (e instanceof Variable) {
+                ops[i] = VARIABLE;
+                leafLists.computeIfAbsent((Variable) e, var -> new ArrayList<>()).add(i);
+            } else {
+                ops[i] = e instanceof Sum ? SUM : PRODUCT;
+            }
+        }
+        children = new int[childStart[n]];
+        for (int i = 0; i < n; i ++) {
+            parentStart[i + 1] += parentStart[i];
+            List<Integer> ids = childLists.get(i);
+            for (int k = 0; k < ids.size(); k ++) {
+                children[childStart[i] + k] = ids.get(k);
+            }
+        }
+        parents = new int[parentStart[n]];
+        parentSlots = new int[parentStart[n]];
+        int[] filled = new int[n];
+        treeStart = new int[n];
+        int treeSize = 0;
+        for (int i = 0; i < n; i ++) {
+            for (int k = childStart[i]; k < childStart[i + 1]; k ++) {
+                int child = children[k];
+                int edge = parentStart[child] + filled[child] ++;
+                parents[edge] = i;
+                parentSlots[edge] = k - childStart[i];
+            }
+            int arity = childStart[i + 1] - childStart[i];
+            if (arity >= WIDE) {
+                treeStart[i] = treeSize;
+                treeSize += 2 * arity;
+            } else {
+                treeStart[i] = -1;
+            }
+        }
+        trees = new double[treeSize];
+        leaves = new HashMap<>();
+        for (Map.Entry<Variable, List<Integer>> entry : leafLists.entrySet()) {
+            Double value = environment.get(entry.getKey());
+            if (value == null) {
+                throw new IllegalArgumentException("no value for variable " + entry.getKey());
+            }
+            int[] ids = new int[entry.getValue().size()];
+            for (int k = 0; k < ids.length; k ++) {
+                ids[k] = entry.getValue().get(k);
+                values[ids[k]] = value;
+            }
+            leaves.put(entry.getKey(), ids);
+        }
+        dirty = new boolean[n];
+        heap = new int[n];
+        for (int i = 0; i < n; i ++) {
+            if (treeStart[i] >= 0) {
+                buildTree(i);
+            }
+            if (ops[i] >= SUM) {
+                values[i] = compute(i);
+            }
+        }
+        checkRep();
+    }
+
+    /**
+     * @return the value of the expression for the current variable values
+     */
+    public double value() {
+        return values[values.length - 1];
+    }
+
+    /**
+     * Change the value of one variable and bring the expression's value up to date.
+     *
+     * @param var a variable; if the expression does not contain it, nothing changes
+     * @param value the new value of var
+     * @return the value of the expression for the new variable values
+     */
+    public double set(Variable var, double value) {
+        mark(var, value);
+        return propagate();
+    }
+
+    /**
+     * Change the values of several variables and bring the expression's value up to date, recomputing
+     * each node that depends on any of them once.
+     *
+     * @param changes maps variables to their new values; variables the expression does not contain
+     *                are ignored
+     * @return the value of the expression for the new variable values
+     */
+    public double update(Map<Variable, Double> changes) {
+        for (Map.Entry<Variable, Double> change : changes.entrySet()) {
+            mark(change.getKey(), change.getValue());
+        }
+        return propagate();
+    }
+
+    /**
+     * @return the number of Sum and Product nodes recomputed by the last call to set or update
+     */
+    public int recomputed() {
+        return recomputed;
+    }
+
+    /*
+     * Returns the number of additions and multiplications done by the last call to set or update.
+     */
+    long combined() {
+        return combined;
+    }
+
+    /*
+     * Sets the leaves of var to value, and marks the parents of those that change dirty.
+     */
+    private void mark(Variable var, double value) {
+        int[] ids = leaves.get(var);
+        if (ids == null) {
+            return;
+        }
+        for (int leaf : ids) {
+            if (Double.compare(values[leaf], value) != 0) {
+                values[leaf] = value;
+                markParents(leaf);
+            }
+        }
+    }
+
+    /*
+     * Marks the parents of node dirty after its value changed, updating their segment trees.
+     */
+    private void markParents(int node) {
+        for (int k = parentStart[node]; k < parentStart[node + 1]; k ++) {
+            int parent = parents[k];
+            if (treeStart[parent] >= 0) {
+                updateTree(parent, parentSlots[k], values[node]);
+            }
+            if (!dirty[parent]) {
+                dirty[parent] = true;
+                push(parent);
+            }
+        }
+    }
+
+    /*
+     * Recomputes the dirty nodes, children before parents, and returns the root's value.
+     */
+    private double propagate() {
+        recomputed = 0;
+        combined = 0;
+        // parents are numbered after their children, so they are popped after every dirty child
+        while (heapSize > 0) {
+            int i = pop();
+            dirty[i] = false;
+            recomputed ++;
+            if (treeStart[i] < 0) {
+                combined += childStart[i + 1] - childStart[i] - 1;
+            }
+            double value = compute(i);
+            if (Double.compare(values[i], value) != 0) {
+                values[i] = value;
+                markParents(i);
+            }
+            checkNode(i);
+        }
+        return value();
+    }
+
+    private void push(int node) {
+        int k = heapSize ++;
+        while (k > 0) {
+            int parent = (k - 1) / 2;
+            if (heap[parent] <= node) {
+                break;
+            }
+            heap[k] = heap[parent];
+            k = parent;
+        }
+        heap[k] = node;
+    }
+
+    private int pop() {
+        int top = heap[0];
+        int last = heap[-- heapSize];
+        int k = 0;
+        while (true) {
+            int child = 2 * k + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                child ++;
+            }
+            if (last <= heap[child]) {
+                break;
+            }
+            heap[k] = heap[child];
+            k = child;
+        }
+        heap[k] = last;
+        return top;
+    }
+
+    /*
+     * Fills the segment tree of node from its children's values.
+     */
+    private void buildTree(int node) {
+        int base = treeStart[node];
+        int arity = childStart[node + 1] - childStart[node];
+        for (int j = 0; j < arity; j ++) {
+            trees[base + arity + j] = values[children[childStart[node] + j]];
+        }
+        for (int m = arity - 1; m >= 1; m --) {
+            trees[base + m] = combine(node, trees[base + 2 * m], trees[base + 2 * m + 1]);
+        }
+    }
+
+    /*
+     * Sets the value of child slot of node in its segment tree, and recombines the slots above it.
+     */
+    private void updateTree(int node, int slot, double value) {
+        int base = treeStart[node];
+        int m = childStart[node + 1] - childStart[node] + slot;
+        trees[base + m] = value;
+        for (m /= 2; m >= 1; m /= 2) {
+            trees[base + m] = combine(node, trees[base + 2 * m], trees[base + 2 * m + 1]);
+            combined ++;
+        }
+    }
+
+    private double combine(int node, double left, double right) {
+        return ops[node] == SUM ? left + right : left * right;
+    }
+
+    /*
+     * Returns the sum or product of the children of node, read from its segment tree if it has one.
+     */
+    private double compute(int node) {
+        if (treeStart[node] >= 0) {
+            return trees[treeStart[node] + 1];
+        }
+        int k = childStart[node];
+        double result = values[children[k]];
+        if (ops[node] == SUM) {
+            for (k ++; k < childStart[node + 1]; k ++) {
+                result += values[children[k]];
+            }
+        } else {
+            for (k ++; k < childStart[node + 1]; k ++) {
+                result *= values[children[k]];
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,81 @@
+package expressivo;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Global hash-consing table for Expression nodes.
+ *
+ * intern(e) returns the canonical instance structurally equal to e, so Expressions built through
+ * the Expression factories, the parsers, differentiate and simplify share every repeated subtree,
+ * and equal interned Expressions are the same object. The table holds its entries weakly: a
+ * canonical node is dropped once nothing else references it.
+ *
+ * The table is split into independently locked stripes, chosen by hash code, so that threads
+ * interning unrelated nodes rarely contend.
+ */
+class Interner {
+
+    private static final int STRIPES = 64;
+
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i ++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /*
+     * Maps each canonical node to a weak reference to itself. Guarded by the stripe's own lock.
+     */
+    private static class Stripe {
+        final Map<Expression, WeakReference<Expression>> table = new WeakHashMap<>();
+    }
+
+    private Interner() {
+        // not instantiable
+    }
+
+    private static Stripe stripeFor(Expression e) {
+        int h = e.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    /**
+     * Return the canonical instance of an expression.
+     *
+     * @param e an expression
+     * @return an expression that equals e and has the same class as e. Every call with equal
+     *         arguments returns the same instance for as long as that instance is reachable.
+     */
+    @SuppressWarnings("unchecked")
+    static <E extends Expression> E intern(E e) {
+        Stripe stripe = stripeFor(e);
+        synchronized (stripe) {
+            WeakReference<Expression> ref = stripe.table.get(e);
+            Expression canonical = ref == null ? null : ref.get();
+            if (canonical != null) {
+                // equal Expressions always have the same class
+                return (E) canonical;
+            }
+            stripe.table.put(e, new WeakReference<>(e));
+            return e;
+        }
+    }
+
+    /**
+     * @return the number of canonical nodes currently in the table
+     */
+    static int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.table.size();
+            }
+        }
+        return size;
+    }
+}
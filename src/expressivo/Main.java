@@ -17,6 +17,11 @@ import java.util.regex.Pattern;
  */
 public class Main {
     
+    /*
+     * Every command re-parses the current expression string, so keep recently parsed ones, up to
+     * about a million AST nodes plus input chars.
+     */
+    private static final ParseCache PARSE_CACHE = new ParseCache(1 << 20);
     
     /**
      * Read expression and command inputs from the console and output results.
@@ -41,14 +46,14 @@ public class Main {
                 
                 if (input.startsWith(DIFFERENTIATE_PREFIX)) {
                     final String variable = parseDifferentiate(input);
-                    output = Commands.differentiate(currentExpression.get(), variable);
+                    output = Commands.differentiate(currentExpression.get(), variable, PARSE_CACHE);
                     currentExpression = Optional.of(output);
                 } else if (input.startsWith(SIMPLIFY_PREFIX)) {
                     final Map<String,Double> environment = parseSimpify(input);
-                    output = Commands.simplify(currentExpression.get(), environment);
+                    output = Commands.simplify(currentExpression.get(), environment, PARSE_CACHE);
                     // ... but don't change currentExpression
                 } else {
-                    final Expression expression = Expression.parse(input);
+                    final Expression expression = PARSE_CACHE.parse(input);
                     output = expression.toString();
                     currentExpression = Optional.of(output);
                 }
@@ -0,0 +1,30 @@
+package expressivo;
+
+/**
+ * The nonterminals of the grammar in Expression.g, which label the nodes of the parse trees built
+ * by ExpressionParser and read by Ast.
+ */
+enum MathExpression {
+    // ROOT, SUM, PRODUCT, PRIMITIVE, NUMBER, VARIABLE, WHITESPACE //  , EXPRESSION
+    //ROOT, SUM, PRODUCT, PRODPRIMITIVE, SUMPRIMITIVE, NUMBER, VARIABLE, WHITESPACE, PRIMITIVE
+    ROOT, SUM, PRODUCT, PRIMITIVE, NUMBER, VARIABLE, WHITESPACE 
+
+};
+/*
+ * @skip whitespace {
+    root ::= expression;
+    expression ::= sum | product | primitive;
+    sum ::= primitive ('+' primitive)+;
+    product ::= primitive ('*' primitive)+;
+    primitive ::= number | variable | '(' sum ')' | '(' product ')' | '(' primitive ')'
+}
+
+whitespace ::= [ ]+;
+number::= [0-9]+ ('.')? [0-9]* | [0-9]* ('.')? [0-9]+  ;
+variable ::= [a-z]+
+ * 
+ * 
+ * 
+ * 
+ * 
+ */
@@ -1,5 +1,6 @@
 package expressivo;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.Arrays;
 import java.util.Collections;
@@ -8,32 +9,61 @@ import java.util.Map;
 
 public class NonNegativeNum implements Expression {
 
+    /*
+     * Most digits after the decimal point of a number kept as a scaled long; 10^MAX_SCALE fits in a long.
+     */
+    static final int MAX_SCALE = 18;
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_SCALE + 1];
+    private static final double[] DOUBLE_POWERS_OF_TEN = new double[MAX_SCALE + 1];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        DOUBLE_POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i <= MAX_SCALE; i ++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+            DOUBLE_POWERS_OF_TEN[i] = POWERS_OF_TEN[i];
+        }
+    }
+
+    /*
+     * Largest long that converts to double exactly.
+     */
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+
+    private final long unscaled;
+    private final int scale;
     private final BigDecimal number;
     private final List<Expression> terms;
     private final int hashCode;
-    private final String stringRep;
+    private String stringRep;
     
-    static final NonNegativeNum zero = new NonNegativeNum(  new BigDecimal("0"));
-    static final NonNegativeNum one = new NonNegativeNum( new BigDecimal("1"));
+    static final NonNegativeNum zero = Interner.intern(new NonNegativeNum(  new BigDecimal("0")));
+    static final NonNegativeNum one = Interner.intern(new NonNegativeNum( new BigDecimal("1")));
     
     /*
      * Rep invariant: 
-     * number is a BigDecimal that has a value >= 0, with all
-     * trailing zeros stripped. 
+     * number is null if the value is compact, that is equal to unscaled * 10^-scale for some unscaled >= 0
+     * that fits in a long and 0 <= scale <= MAX_SCALE. Then 0 <= scale <= MAX_SCALE, unscaled >= 0,
+     * and unscaled is not a multiple of 10 if scale > 0, so that the pair is unique for each value.
+     * Otherwise number is a BigDecimal that has a value >= 0, with all trailing zeros stripped,
+     * and unscaled and scale are 0.
      * terms is a list with only one item: the current
      * NonNegativeNum instance this. 
-     * stringRep is a nonempty string equal to
-     * number.toPlainString().
+     * stringRep is null or equal to numericValue().toPlainString().
      * 
      * 
      * Abstraction Function: The number representation directly represents a
-     * mathematical numerical value.
+     * mathematical numerical value: unscaled * 10^-scale if number is null, otherwise number.
      * 
      * Safety from rep exposure argument: The number field points to an immutable
      * datatype BigDecimal, and the pointer number itself is final and cannot be
-     * modified, so this is an immutable representation. terms is constructed as an
-     * immutable list, and the reference is immutable. hashCode and stringRep are
-     * immutable pointers to immutable objects.
+     * modified, so this is an immutable representation. unscaled and scale are final
+     * primitives. terms is constructed as an
+     * immutable list, and the reference is immutable. hashCode is immutable, and
+     * stringRep is a cache of an immutable String.
+     * 
+     * Thread safety argument: the only mutable field is stringRep, and every thread that sets it
+     * sets it to an equal immutable String, so racing toString() calls are benign.
      * 
      */
 
@@ -47,17 +77,43 @@ public class NonNegativeNum implements Expression {
         return terms;
     }
 
+    /*
+     * Returns the value of this number; allocates a BigDecimal if the value is compact.
+     */
     BigDecimal numericValue() {
-        return number;
+        return number != null ? number : BigDecimal.valueOf(unscaled, scale);
+    }
+
+    /*
+     * Returns the value of this number rounded to the nearest double, as numericValue().doubleValue()
+     * does, without allocating for most compact values.
+     */
+    double doubleValue() {
+        if (number == null && unscaled <= MAX_EXACT_DOUBLE) {
+            // both operands are exact doubles, so the division rounds once, correctly
+            return scale == 0 ? unscaled : unscaled / DOUBLE_POWERS_OF_TEN[scale];
+        }
+        return numericValue().doubleValue();
     }
     
-    private void checkRep() {
-        assert number.compareTo(new BigDecimal(0)) != -1;
-        // assert number.toString().equals(number.toPlainString());
+    /*
+     * Checks the rep invariant. Called once by the constructor, and by Expression.validate.
+     */
+    void checkRep() {
+        if (number == null) {
+            assert unscaled >= 0;
+            assert 0 <= scale && scale <= MAX_SCALE;
+            assert scale == 0 || unscaled % 10 != 0;
+        } else {
+            assert number.signum() >= 0;
+            assert number.compareTo(number.stripTrailingZeros()) == 0
+                    && number.scale() == number.stripTrailingZeros().scale();
+            assert unscaled == 0 && scale == 0;
+        }
         assert terms.size() == 1;
         assert terms.get(0) == this;
 
-        assert stringRep.equals(number.toPlainString());
+        assert stringRep == null || stringRep.equals(numericValue().toPlainString());
 
     }
 
@@ -68,14 +124,121 @@ public class NonNegativeNum implements Expression {
      * @return a NonNegativeNum that exactly represents the number.
      */
     public NonNegativeNum(BigDecimal number) {
-        this.number = number.stripTrailingZeros();
+        BigDecimal stripped = number.stripTrailingZeros();
+        // a long has at most 19 digits
+        if (stripped.scale() <= MAX_SCALE && stripped.precision() - stripped.scale() <= 19) {
+            BigDecimal plain = stripped.scale() < 0 ? stripped.setScale(0) : stripped;
+            if (plain.unscaledValue().bitLength() < Long.SIZE) {
+                stripped = null;
+                this.unscaled = plain.unscaledValue().longValue();
+                this.scale = plain.scale();
+            } else {
+                this.unscaled = 0;
+                this.scale = 0;
+            }
+        } else {
+            this.unscaled = 0;
+            this.scale = 0;
+        }
+        this.number = stripped;
+        terms = Collections.unmodifiableList(Arrays.asList(this));
+        hashCode = stripped != null ? stripped.hashCode() : compactHashCode(unscaled, scale);
+
+        checkRep();
+    }
+
+    /*
+     * Builds a compact NonNegativeNum. Requires that unscaled and scale satisfy the rep invariant.
+     */
+    private NonNegativeNum(long unscaled, int scale) {
+        this.unscaled = unscaled;
+        this.scale = scale;
+        this.number = null;
         terms = Collections.unmodifiableList(Arrays.asList(this));
-        hashCode = this.number.hashCode();
-        stringRep = this.number.toPlainString();
+        hashCode = compactHashCode(unscaled, scale);
 
         checkRep();
     }
 
+    private static int compactHashCode(long unscaled, int scale) {
+        return 31 * Long.hashCode(unscaled) + scale;
+    }
+
+    /*
+     * Returns the NonNegativeNum equal to unscaled * 10^-scale. Requires unscaled >= 0 and scale >= 0.
+     */
+    static NonNegativeNum valueOf(long unscaled, int scale) {
+        while (scale > 0 && unscaled % 10 == 0) {
+            unscaled /= 10;
+            scale --;
+        }
+        if (scale > MAX_SCALE) {
+            return new NonNegativeNum(BigDecimal.valueOf(unscaled, scale));
+        }
+        return new NonNegativeNum(unscaled, scale);
+    }
+
+    /*
+     * Returns the NonNegativeNum written as text[start .. end), which must match the grammar's number
+     * rule: digits with at most one '.' among them. The value is read straight into a scaled long,
+     * skipping the BigDecimal, unless it is not compact.
+     */
+    static NonNegativeNum parse(CharSequence text, int start, int end) {
+        long unscaled = 0;
+        int scale = 0;
+        boolean fraction = false;
+        // zeros after the point not yet followed by a nonzero digit, which may turn out to be trailing
+        int pendingZeros = 0;
+        try {
+            for (int i = start; i < end; i ++) {
+                char c = text.charAt(i);
+                if (c == '.') {
+                    fraction = true;
+                } else if (!fraction) {
+                    unscaled = Math.addExact(Math.multiplyExact(unscaled, 10), c - '0');
+                } else if (c == '0') {
+                    pendingZeros ++;
+                } else {
+                    scale += pendingZeros + 1;
+                    if (scale > MAX_SCALE) {
+                        break;
+                    }
+                    unscaled = Math.addExact(Math.multiplyExact(unscaled, POWERS_OF_TEN[pendingZeros + 1]), c - '0');
+                    pendingZeros = 0;
+                }
+            }
+            if (scale <= MAX_SCALE) {
+                return valueOf(unscaled, scale);
+            }
+        } catch (ArithmeticException overflow) {
+            // fall back to BigDecimal
+        }
+        return new NonNegativeNum(new BigDecimal(text.subSequence(start, end).toString()));
+    }
+
+    /*
+     * Returns the text of the number unscaled * 10^-scale without an exponent, as
+     * BigDecimal.toPlainString() does.
+     */
+    private static String plainString(long unscaled, int scale) {
+        String digits = Long.toString(unscaled);
+        if (scale == 0) {
+            return digits;
+        }
+        int length = digits.length();
+        StringBuilder out = new StringBuilder(Math.max(length, scale + 1) + 1);
+        if (length <= scale) {
+            out.append("0.");
+            for (int i = length; i < scale; i ++) {
+                out.append('0');
+            }
+            out.append(digits);
+        } else {
+            out.append(digits, 0, length - scale).append('.').append(digits, length - scale, length);
+        }
+        return out.toString();
+    }
+
     /**
      * Returns a string representation of the NonNegative numeric expression.
      * 
@@ -87,8 +250,17 @@ public class NonNegativeNum implements Expression {
      */
     @Override
     public String toString() {
-        checkRep();
-        return stringRep;
+        String result = stringRep;
+        if (result == null) {
+            result = number != null ? number.toPlainString() : plainString(unscaled, scale);
+            stringRep = result;
+        }
+        return result;
+    }
+
+    @Override
+    public void appendTo(Appendable out) throws IOException {
+        out.append(toString());
     }
 
     /**
@@ -105,11 +277,18 @@ public class NonNegativeNum implements Expression {
      */
     @Override
     public boolean equals(Object thatObject) {
+        if (this == thatObject)
+            return true;
         if (!(thatObject instanceof NonNegativeNum))
             return false;
         NonNegativeNum that = (NonNegativeNum) thatObject;
+        if (hashCode != that.hashCode)
+            return false;
 
-        checkRep();
+        if (number == null || that.number == null) {
+            // every compact value has one compact form, and no other form
+            return number == that.number && unscaled == that.unscaled && scale == that.scale;
+        }
         return number.compareTo(that.number) == 0;
     }
 
@@ -121,10 +300,96 @@ public class NonNegativeNum implements Expression {
      */
     @Override
     public int hashCode() {
-        checkRep();
         return hashCode;
     }
 
+    /**
+     * A mutable exact sum or product of NonNegativeNums, for folding many numbers into one result
+     * object. While the running value is compact it is kept as a scaled long, and each step is
+     * overflow-checked arithmetic that allocates nothing; a step that would overflow, or need more
+     * than MAX_SCALE digits after the point, switches to BigDecimal for the rest of the fold.
+     */
+    static class Accumulator {
+
+        private long unscaled;
+        private int scale;
+        private BigDecimal number;
+
+        /*
+         * Rep invariant:
+         * if number is null, unscaled >= 0 and 0 <= scale <= MAX_SCALE, not necessarily stripped.
+         *
+         * Abstraction Function: represents the running value unscaled * 10^-scale if number is null,
+         * otherwise number.
+         *
+         * Safety from rep exposure argument: number is an immutable BigDecimal, and no field is returned.
+         */
+
+        /**
+         * Start a new fold.
+         *
+         * @param first the first number of the fold
+         */
+        void reset(NonNegativeNum first) {
+            unscaled = first.unscaled;
+            scale = first.scale;
+            number = first.number;
+        }
+
+        /**
+         * @param term a number to add to the running value
+         */
+        void add(NonNegativeNum term) {
+            if (number == null && term.number == null) {
+                int common = Math.max(scale, term.scale);
+                try {
+                    long sum = Math.addExact(Math.multiplyExact(unscaled, POWERS_OF_TEN[common - scale]),
+                            Math.multiplyExact(term.unscaled, POWERS_OF_TEN[common - term.scale]));
+                    unscaled = sum;
+                    scale = common;
+                    return;
+                } catch (ArithmeticException overflow) {
+                    // fall back to BigDecimal
+                }
+            }
+            number = value().add(term.numericValue());
+        }
+
+        /**
+         * @param term a number to multiply the running value by
+         */
+        void multiply(NonNegativeNum term) {
+            if (number == null && term.number == null) {
+                // sums may have left trailing zeros, which would waste scale
+                while (scale > 0 && unscaled % 10 == 0) {
+                    unscaled /= 10;
+                    scale --;
+                }
+                if (scale + term.scale <= MAX_SCALE) {
+                    try {
+                        unscaled = Math.multiplyExact(unscaled, term.unscaled);
+                        scale += term.scale;
+                        return;
+                    } catch (ArithmeticException overflow) {
+                        // fall back to BigDecimal
+                    }
+                }
+            }
+            number = value().multiply(term.numericValue());
+        }
+
+        private BigDecimal value() {
+            return number != null ? number : BigDecimal.valueOf(unscaled, scale);
+        }
+
+        /**
+         * @return a new NonNegativeNum equal to the running value
+         */
+        NonNegativeNum result() {
+            return number != null ? new NonNegativeNum(number) : valueOf(unscaled, scale);
+        }
+    }
+
     static public void main(String args[]) {
         // number.stripTrailingZeros().toPlainString()
         BigDecimal big = new BigDecimal(".00000000000000");
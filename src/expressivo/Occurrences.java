@@ -0,0 +1,113 @@
+package expressivo;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compact summaries of which variables occur in an expression, computed by every Sum and Product
+ * at construction, so that traversals can skip in O(1) the subtrees that a variable or an
+ * environment cannot affect.
+ *
+ * A summary is a 64-bit Bloom filter of variables: each variable sets one bit chosen from its hash
+ * code, and a node's summary is the union of its children's. If none of a variable's bits is set in
+ * a summary, the variable certainly does not occur in the expression; if some are, it may.
+ *
+ * A Sum or Product is foldable if simplify would fold some subexpression of it into a number for
+ * every environment: if it has a Sum or Product with no variables anywhere in it.
+ */
+class Occurrences {
+
+    private Occurrences() {
+        // not instantiable
+    }
+
+    /**
+     * @param var a variable
+     * @return the summary of var, with exactly one bit set
+     */
+    static long of(Variable var) {
+        // Fibonacci hashing: the top 6 bits of the product pick the bit
+        return 1L << ((var.hashCode() * 0x9E3779B9) >>> 26);
+    }
+
+    /**
+     * @param e an expression
+     * @return the summary of the variables of e; 0 if e has no variables
+     */
+    static long of(Expression e) {
+        if (e instanceof Variable) {
+            return of((Variable) e);
+        }
+        if (e instanceof Sum) {
+            return ((Sum) e).occurrences();
+        }
+        if (e instanceof Product) {
+            return ((Product) e).occurrences();
+        }
+        return 0;
+    }
+
+    /**
+     * @param vars some variables
+     * @return the union of the summaries of vars
+     */
+    static long of(Collection<Variable> vars) {
+        long summary = 0;
+        for (Variable var : vars) {
+            summary |= of(var);
+        }
+        return summary;
+    }
+
+    /**
+     * @param children the children of a Sum or Product
+     * @return the summary of the Sum or Product
+     */
+    static long union(List<Expression> children) {
+        long summary = 0;
+        for (Expression child : children) {
+            summary |= of(child);
+        }
+        return summary;
+    }
+
+    /**
+     * @param children the children of a Sum or Product
+     * @param summary union(children)
+     * @return whether the Sum or Product is foldable
+     */
+    static boolean foldable(List<Expression> children, long summary) {
+        if (summary == 0) {
+            return true;
+        }
+        for (Expression child : children) {
+            if (foldable(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param e an expression
+     * @return whether e is a foldable Sum or Product
+     */
+    static boolean foldable(Expression e) {
+        if (e instanceof Sum) {
+            return ((Sum) e).foldable();
+        }
+        if (e instanceof Product) {
+            return ((Product) e).foldable();
+        }
+        return false;
+    }
+
+    /**
+     * @param e an expression
+     * @param summary a summary of some variables
+     * @return false if no variable summarized by summary occurs in e; true if one may
+     */
+    static boolean mayOccur(Expression e, long summary) {
+        return (of(e) & summary) != 0;
+    }
+}
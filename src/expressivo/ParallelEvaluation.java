@@ -0,0 +1,115 @@
+package expressivo;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join task that evaluates one BoundExpression in many environments, writing each result
+ * into its own index of a preallocated array.
+ *
+ * A task keeps splitting its range in half while the range is large and the pool's workers are
+ * not already busy with queued work, so the split depth adapts to the load instead of being fixed.
+ * Each worker thread gets one pair of scratch arrays per evaluation, for the variable values and
+ * the node values, and reuses them for every environment of every task it runs, instead of building
+ * a map per environment or allocating per task.
+ */
+class ParallelEvaluation extends RecursiveAction {
+
+    private static final long serialVersionUID = 1;
+
+    /*
+     * Ranges at most this long are always evaluated without splitting.
+     */
+    private static final int MIN_SPLIT = 256;
+
+    /*
+     * A task stops splitting once its worker has this many surplus queued tasks.
+     */
+    private static final int SURPLUS_TASKS = 3;
+
+    private final BoundExpression expression;
+    private final List<String> names;
+    private final List<Map<String, Double>> environments;
+    private final double[] results;
+    private final int from;
+    private final int to;
+    // per worker: the variable values and the node values, shared by all tasks of one evaluation
+    private final ThreadLocal<double[][]> scratch;
+
+    // chains the tasks forked by one compute() call, most recent first
+    private ParallelEvaluation next = null;
+
+    /*
+     * Rep invariant:
+     * names.get(k) is the name of expression.variables().get(k).
+     * results.length == environments.size(), and 0 <= from <= to <= results.length.
+     * scratch gives every thread arrays of lengths names.size() and expression.size().
+     *
+     * Abstraction Function: represents the work of setting results[i] to the value of expression
+     * in environments.get(i), for every from <= i < to.
+     *
+     * Safety from rep exposure argument: the task only writes results[from..to), and tasks forked
+     * from it write disjoint subranges, so no two tasks write the same index. Each thread only
+     * uses its own scratch arrays, and runs one task's evaluateRange at a time.
+     */
+
+    ParallelEvaluation(BoundExpression expression, List<String> names, List<Map<String, Double>> environments,
+            double[] results, int from, int to) {
+        this(expression, names, environments, results, from, to,
+                ThreadLocal.withInitial(() -> new double[][] { new double[names.size()], new double[expression.size()] }));
+    }
+
+    private ParallelEvaluation(BoundExpression expression, List<String> names, List<Map<String, Double>> environments,
+            double[] results, int from, int to, ThreadLocal<double[][]> scratch) {
+        this.expression = expression;
+        this.names = names;
+        this.environments = environments;
+        this.results = results;
+        this.from = from;
+        this.to = to;
+        this.scratch = scratch;
+        assert results.length == environments.size();
+        assert 0 <= from && from <= to && to <= results.length;
+    }
+
+    @Override
+    protected void compute() {
+        int high = to;
+        ParallelEvaluation forked = null;
+        while (high - from > MIN_SPLIT && getSurplusQueuedTaskCount() <= SURPLUS_TASKS) {
+            int middle = (from + high) >>> 1;
+            ParallelEvaluation right = new ParallelEvaluation(expression, names, environments, results, middle, high,
+                    scratch);
+            right.fork();
+            right.next = forked;
+            forked = right;
+            high = middle;
+        }
+        evaluateRange(from, high);
+        for (ParallelEvaluation task = forked; task != null; task = task.next) {
+            if (task.tryUnfork()) {
+                task.evaluateRange(task.from, task.to);
+            } else {
+                task.join();
+            }
+        }
+    }
+
+    private void evaluateRange(int low, int high) {
+        double[][] arrays = scratch.get();
+        double[] values = arrays[0];
+        double[] nodeValues = arrays[1];
+        for (int i = low; i < high; i ++) {
+            Map<String, Double> environment = environments.get(i);
+            for (int k = 0; k < values.length; k ++) {
+                Double value = environment.get(names.get(k));
+                if (value == null) {
+                    throw new IllegalArgumentException("environment " + i + " has no value for " + names.get(k));
+                }
+                values[k] = value;
+            }
+            results[i] = expression.evaluate(values, nodeValues);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package expressivo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A mutable, thread-safe, size-bounded cache from input strings to the Expressions parsed from them.
+ *
+ * Entries are weighed by the number of Expression nodes in the parsed AST plus the number of chars
+ * in the input string, since both are kept, and the input can be much larger than its AST (as the
+ * redundant text of a derivative fed back to the console is). The least recently used entries are
+ * evicted whenever the total weight would exceed the capacity.
+ * Sharing the cached Expressions between callers is safe because Expressions are immutable.
+ */
+public class ParseCache {
+
+    private final long capacity;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /*
+     * Rep invariant:
+     * capacity > 0.
+     * weight is the sum of the weights of all entries, and weight <= capacity.
+     * Every entry's weight is weight(key, its expression), and its expression
+     * equals Expression.parse(key).
+     * hits, misses, evictions >= 0.
+     *
+     * Abstraction Function: represents the set of (input, parsed expression) pairs in entries,
+     * ordered from least to most recently used, together with counters of cache hits, misses
+     * and evicted pairs since construction.
+     *
+     * Safety from rep exposure argument: entries and weight are never returned. Expressions
+     * are immutable, so returning cached ones is safe.
+     *
+     * Thread safety argument: entries and weight are only accessed while holding the lock on
+     * entries. The counters are AtomicLongs. Parsing a missed input happens outside the lock,
+     * so concurrent misses do not wait on each other.
+     */
+
+    private static class Entry {
+        final Expression expression;
+        final long weight;
+
+        Entry(Expression expression, long weight) {
+            this.expression = expression;
+            this.weight = weight;
+        }
+    }
+
+    private void checkRep() {
+        assert capacity > 0;
+        assert weight >= 0 && weight <= capacity;
+    }
+
+    /**
+     * Create an empty cache.
+     *
+     * @param capacity the maximum total weight of the cache, in Expression nodes plus input chars;
+     *                 must be positive
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    public ParseCache(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        checkRep();
+    }
+
+    /**
+     * Parse an expression, reusing the result of an earlier parse of the same input if it is cached.
+     *
+     * @param input expression to parse, as defined in the PS1 handout.
+     * @return an Expression equal to Expression.parse(input)
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public Expression parse(String input) {
+        synchronized (entries) {
+            Entry cached = entries.get(input);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.expression;
+            }
+        }
+        misses.incrementAndGet();
+        Expression expression = Expression.parse(input);
+        long entryWeight = weight(input, expression);
+        if (entryWeight > capacity) {
+            return expression;
+        }
+        synchronized (entries) {
+            Entry previous = entries.put(input, new Entry(expression, entryWeight));
+            if (previous != null) {
+                weight -= previous.weight;
+            }
+            weight += entryWeight;
+            evictToCapacity();
+            checkRep();
+        }
+        return expression;
+    }
+
+    /*
+     * Requires the lock on entries.
+     */
+    private void evictToCapacity() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (weight > capacity) {
+            weight -= eldest.next().weight;
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /*
+     * Returns the weight of an entry: the node count of expression plus the length of input.
+     */
+    private static long weight(String input, Expression expression) {
+        return nodeCount(expression) + input.length();
+    }
+
+    /**
+     * @return the number of Expression nodes in e, counting every Sum, Product, Variable and
+     *         NonNegativeNum in its AST
+     */
+    static long nodeCount(Expression e) {
+        return Traversal.foldShared(e, new Traversal.Fold<Long>() {
+            @Override
+            public Long leaf(Expression leaf) {
+                return 1L;
+            }
+
+            @Override
+            public Long node(Expression node, List<Long> counts) {
+                long count = 1;
+                for (long childCount : counts) {
+                    count += childCount;
+                }
+                return count;
+            }
+        });
+    }
+
+    /**
+     * @return the maximum total weight this cache keeps, in Expression nodes plus input chars
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of inputs currently cached
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the total weight currently cached: the Expression nodes of the cached expressions plus
+     *         the chars of their inputs
+     */
+    public long weight() {
+        synchronized (entries) {
+            return weight;
+        }
+    }
+
+    /**
+     * @return the number of calls to parse that returned a cached Expression
+     */
+    public long hitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of calls to parse that had to parse their input
+     */
+    public long missCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of entries removed to keep the cache within its capacity
+     */
+    public long evictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Remove every cached entry. The hit, miss and eviction counts are not reset.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+            weight = 0;
+            checkRep();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ParseCache[size=" + size() + ", weight=" + weight() + "/" + capacity
+                + ", hits=" + hitCount() + ", misses=" + missCount() + ", evictions=" + evictionCount() + "]";
+    }
+}
@@ -0,0 +1,20 @@
+package expressivo;
+
+/**
+ * The parser implementations that Expression.parse can use. Both accept exactly the language
+ * of Expression.g and produce equal Expressions for every valid input.
+ */
+public enum ParserKind {
+
+    /**
+     * Parses with lib6005 using the grammar in Expression.g, then builds the Expression by
+     * walking the resulting ParseTree.
+     */
+    LIB6005,
+
+    /**
+     * Hand-written single-pass parser that builds Sum, Product, Variable and NonNegativeNum
+     * nodes directly from the input, without an intermediate parse tree.
+     */
+    RECURSIVE_DESCENT
+}
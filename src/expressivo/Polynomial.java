@@ -0,0 +1,520 @@
+package expressivo;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An immutable multivariate polynomial with nonnegative decimal coefficients, in sparse normal form.
+ *
+ * Every Expression is a polynomial, since it is built only from +, *, nonnegative numbers and
+ * variables, and two expressions are mathematically equal if and only if their polynomials are
+ * equal. Comparing, differentiating and evaluating through this normal form takes time in the
+ * number of distinct monomials, which is often far smaller than the expression tree.
+ *
+ * Each monomial is packed into an array of longs with one 16-bit exponent field per variable, so
+ * multiplying monomials adds words and comparing them compares words. Monomials are ordered by
+ * graded lexicographic order: higher total degree first, then higher exponents of earlier
+ * variables first, with variables in order of their names.
+ */
+public class Polynomial {
+
+    private static final int FIELD_BITS = 16;
+    private static final int FIELDS_PER_WORD = Long.SIZE / FIELD_BITS;
+    private static final long FIELD_MASK = (1L << FIELD_BITS) - 1;
+
+    /**
+     * The highest total degree a monomial may have.
+     */
+    public static final int MAX_DEGREE = (int) FIELD_MASK;
+
+    private static final Comparator<Variable> BY_NAME = Comparator.comparing(Variable::toString);
+
+    private final List<Variable> variables;
+    private final Map<Monomial, BigDecimal> terms;
+
+    /*
+     * Rep invariant:
+     * variables is sorted by name, has no duplicates, and every variable in it has a positive
+     * exponent in some monomial of terms.
+     * Every monomial in terms has one field per variable, and a total degree of at most MAX_DEGREE.
+     * Every coefficient in terms is positive, with its trailing zeros stripped.
+     *
+     * Abstraction Function: represents the sum over the entries (m, c) of terms of c times the
+     * product of variables.get(k) raised to the k-th exponent of m.
+     *
+     * Safety from rep exposure argument: variables is an unmodifiable list, and terms is never
+     * returned. Monomials, BigDecimals and Variables are immutable.
+     */
+
+    private void checkRep() {
+        for (int k = 1; k < variables.size(); k ++) {
+            assert BY_NAME.compare(variables.get(k - 1), variables.get(k)) < 0;
+        }
+        int words = wordsFor(variables.size());
+        for (Map.Entry<Monomial, BigDecimal> term : terms.entrySet()) {
+            assert term.getKey().words.length == words;
+            assert term.getValue().signum() > 0;
+        }
+    }
+
+    /*
+     * A product of variables raised to exponents, packed FIELDS_PER_WORD exponents to a long, the
+     * first variable in the highest bits of the first word.
+     */
+    private static class Monomial implements Comparable<Monomial> {
+        final long[] words;
+        final int degree;
+        final int hashCode;
+
+        Monomial(long[] words, int degree) {
+            this.words = words;
+            this.degree = degree;
+            this.hashCode = Arrays.hashCode(words);
+        }
+
+        int exponent(int k) {
+            return (int) ((words[k / FIELDS_PER_WORD] >>> shift(k)) & FIELD_MASK);
+        }
+
+        Monomial times(Monomial that) {
+            // no field can overflow into its neighbour while the total degree fits in one field
+            if (degree + that.degree > MAX_DEGREE) {
+                throw new ArithmeticException("monomial degree exceeds " + MAX_DEGREE);
+            }
+            long[] product = new long[words.length];
+            for (int i = 0; i < words.length; i ++) {
+                product[i] = words[i] + that.words[i];
+            }
+            return new Monomial(product, degree + that.degree);
+        }
+
+        /*
+         * Negative if this comes first in graded lexicographic order.
+         */
+        @Override
+        public int compareTo(Monomial that) {
+            if (degree != that.degree) {
+                return Integer.compare(that.degree, degree);
+            }
+            for (int i = 0; i < words.length; i ++) {
+                int c = Long.compareUnsigned(that.words[i], words[i]);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            return thatObject instanceof Monomial && Arrays.equals(words, ((Monomial) thatObject).words);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static int shift(int k) {
+        return (FIELDS_PER_WORD - 1 - k % FIELDS_PER_WORD) * FIELD_BITS;
+    }
+
+    private static int wordsFor(int variables) {
+        return (variables + FIELDS_PER_WORD - 1) / FIELDS_PER_WORD;
+    }
+
+    /*
+     * Takes ownership of terms, which must satisfy the rep invariant except that it may have zero
+     * coefficients, unstripped coefficients, and variables with no positive exponent.
+     */
+    private Polynomial(List<Variable> layout, Map<Monomial, BigDecimal> terms) {
+        Map<Monomial, BigDecimal> normal = new HashMap<>();
+        boolean[] used = new boolean[layout.size()];
+        for (Map.Entry<Monomial, BigDecimal> term : terms.entrySet()) {
+            if (term.getValue().signum() != 0) {
+                normal.put(term.getKey(), term.getValue().stripTrailingZeros());
+                for (int k = 0; k < used.length; k ++) {
+                    used[k] |= term.getKey().exponent(k) > 0;
+                }
+            }
+        }
+        List<Variable> occurring = new ArrayList<>();
+        for (int k = 0; k < used.length; k ++) {
+            if (used[k]) {
+                occurring.add(layout.get(k));
+            }
+        }
+        this.variables = Collections.unmodifiableList(occurring);
+        this.terms = occurring.size() == layout.size() ? normal : relayout(layout, normal, occurring);
+        checkRep();
+    }
+
+    /*
+     * Returns terms over layout repacked over target, which must contain every variable of layout
+     * with a positive exponent in terms.
+     */
+    private static Map<Monomial, BigDecimal> relayout(List<Variable> layout, Map<Monomial, BigDecimal> terms,
+            List<Variable> target) {
+        int[] position = new int[layout.size()];
+        for (int k = 0; k < position.length; k ++) {
+            position[k] = target.indexOf(layout.get(k));
+        }
+        Map<Monomial, BigDecimal> repacked = new HashMap<>();
+        for (Map.Entry<Monomial, BigDecimal> term : terms.entrySet()) {
+            Monomial m = term.getKey();
+            long[] words = new long[wordsFor(target.size())];
+            for (int k = 0; k < position.length; k ++) {
+                int exponent = m.exponent(k);
+                if (exponent > 0) {
+                    words[position[k] / FIELDS_PER_WORD] |= (long) exponent << shift(position[k]);
+                }
+            }
+            repacked.put(new Monomial(words, m.degree), term.getValue());
+        }
+        return repacked;
+    }
+
+    /**
+     * Convert an expression to its polynomial.
+     *
+     * @param e the expression to convert
+     * @return the polynomial equal to e, computed in one bottom-up pass that converts each
+     *         distinct node object once
+     * @throws ArithmeticException if some monomial of e has total degree greater than MAX_DEGREE
+     */
+    public static Polynomial of(Expression e) {
+        List<Variable> layout = new ArrayList<>(e.variables());
+        layout.sort(BY_NAME);
+        Map<Variable, Integer> index = new HashMap<>();
+        for (Variable var : layout) {
+            index.put(var, index.size());
+        }
+        int words = wordsFor(layout.size());
+        Monomial unit = new Monomial(new long[words], 0);
+        // every result may be shared between parents, so none is modified once returned
+        Map<Monomial, BigDecimal> terms = Traversal.foldShared(e, new Traversal.Fold<Map<Monomial, BigDecimal>>() {
+            @Override
+            public Map<Monomial, BigDecimal> leaf(Expression leaf) {
+                if (leaf instanceof NonNegativeNum) {
+                    return Collections.singletonMap(unit, ((NonNegativeNum) leaf).numericValue());
+                }
+                int k = index.get(leaf);
+                long[] monomial = new long[words];
+                monomial[k / FIELDS_PER_WORD] = 1L << shift(k);
+                return Collections.singletonMap(new Monomial(monomial, 1), BigDecimal.ONE);
+            }
+
+            @Override
+            public Map<Monomial, BigDecimal> node(Expression node, List<Map<Monomial, BigDecimal>> children) {
+                if (node instanceof Sum) {
+                    Map<Monomial, BigDecimal> sum = new HashMap<>();
+                    for (Map<Monomial, BigDecimal> child : children) {
+                        addInto(sum, child);
+                    }
+                    return sum;
+                }
+                Map<Monomial, BigDecimal> product = children.get(0);
+                for (int i = 1; i < children.size(); i ++) {
+                    product = multiply(product, children.get(i));
+                }
+                return product;
+            }
+        });
+        return new Polynomial(layout, new HashMap<>(terms));
+    }
+
+    private static void addInto(Map<Monomial, BigDecimal> sum, Map<Monomial, BigDecimal> terms) {
+        for (Map.Entry<Monomial, BigDecimal> term : terms.entrySet()) {
+            sum.merge(term.getKey(), term.getValue(), BigDecimal::add);
+        }
+    }
+
+    /*
+     * A position in the heap of multiply: the product of left term i and right term j.
+     */
+    private static class Cursor {
+        final int i;
+        int j;
+        Monomial product;
+
+        Cursor(int i, int j, Monomial product) {
+            this.i = i;
+            this.j = j;
+            this.product = product;
+        }
+    }
+
+    /*
+     * Returns the product of two polynomials over the same layout, in graded lexicographic order.
+     *
+     * Johnson's heap algorithm: the heap holds, for each term of the shorter polynomial, its product
+     * with the next term of the longer one. Since the monomial order respects multiplication, popping
+     * the heap yields all products in order, so equal monomials come out consecutively and are summed
+     * on the fly. The heap never holds more entries than the shorter polynomial has terms.
+     */
+    private static Map<Monomial, BigDecimal> multiply(Map<Monomial, BigDecimal> left, Map<Monomial, BigDecimal> right) {
+        if (left.size() > right.size()) {
+            Map<Monomial, BigDecimal> swap = left;
+            left = right;
+            right = swap;
+        }
+        Map<Monomial, BigDecimal> product = new LinkedHashMap<>();
+        if (left.isEmpty()) {
+            return product;
+        }
+        Monomial[] lm = sortedMonomials(left);
+        Monomial[] rm = sortedMonomials(right);
+        BigDecimal[] lc = coefficients(left, lm);
+        BigDecimal[] rc = coefficients(right, rm);
+        PriorityQueue<Cursor> heap = new PriorityQueue<>(lm.length, (a, b) -> a.product.compareTo(b.product));
+        for (int i = 0; i < lm.length; i ++) {
+            heap.add(new Cursor(i, 0, lm[i].times(rm[0])));
+        }
+        Monomial current = null;
+        BigDecimal coefficient = null;
+        while (!heap.isEmpty()) {
+            Cursor cursor = heap.poll();
+            BigDecimal term = lc[cursor.i].multiply(rc[cursor.j]);
+            if (cursor.product.equals(current)) {
+                coefficient = coefficient.add(term);
+            } else {
+                if (current != null) {
+                    product.put(current, coefficient);
+                }
+                current = cursor.product;
+                coefficient = term;
+            }
+            if (++ cursor.j < rm.length) {
+                cursor.product = lm[cursor.i].times(rm[cursor.j]);
+                heap.add(cursor);
+            }
+        }
+        product.put(current, coefficient);
+        return product;
+    }
+
+    private static Monomial[] sortedMonomials(Map<Monomial, BigDecimal> terms) {
+        Monomial[] monomials = terms.keySet().toArray(new Monomial[terms.size()]);
+        Arrays.sort(monomials);
+        return monomials;
+    }
+
+    private static BigDecimal[] coefficients(Map<Monomial, BigDecimal> terms, Monomial[] monomials) {
+        BigDecimal[] coefficients = new BigDecimal[monomials.length];
+        for (int i = 0; i < monomials.length; i ++) {
+            coefficients[i] = terms.get(monomials[i]);
+        }
+        return coefficients;
+    }
+
+    /*
+     * Returns the variables of a and b, sorted by name.
+     */
+    private static List<Variable> union(List<Variable> a, List<Variable> b) {
+        List<Variable> union = new ArrayList<>(a);
+        for (Variable var : b) {
+            if (!a.contains(var)) {
+                union.add(var);
+            }
+        }
+        union.sort(BY_NAME);
+        return union;
+    }
+
+    private Map<Monomial, BigDecimal> termsOver(List<Variable> layout) {
+        return layout.equals(variables) ? terms : relayout(variables, terms, layout);
+    }
+
+    /**
+     * @return the variables that occur in this polynomial, sorted by name
+     */
+    public List<Variable> variables() {
+        return variables;
+    }
+
+    /**
+     * @return the number of monomials with a nonzero coefficient in this polynomial
+     */
+    public int size() {
+        return terms.size();
+    }
+
+    /**
+     * @param var a variable
+     * @return the dense coefficients of this polynomial in var: an array c of length d + 1, where d is
+     *         the degree of this polynomial in var (0 for a constant polynomial), and c[i] is the
+     *         coefficient of var raised to i
+     * @throws IllegalArgumentException if this polynomial has a variable other than var
+     */
+    BigDecimal[] coefficientsIn(Variable var) {
+        if (variables.size() > 1 || (variables.size() == 1 && !variables.get(0).equals(var))) {
+            throw new IllegalArgumentException("polynomial in " + variables + " is not univariate in " + var);
+        }
+        int degree = 0;
+        for (Monomial m : terms.keySet()) {
+            degree = Math.max(degree, m.degree);
+        }
+        BigDecimal[] coefficients = new BigDecimal[degree + 1];
+        Arrays.fill(coefficients, BigDecimal.ZERO);
+        for (Map.Entry<Monomial, BigDecimal> term : terms.entrySet()) {
+            coefficients[term.getKey().degree] = term.getValue();
+        }
+        return coefficients;
+    }
+
+    /**
+     * @param that another polynomial
+     * @return the sum of this and that
+     */
+    public Polynomial add(Polynomial that) {
+        List<Variable> layout = union(variables, that.variables);
+        Map<Monomial, BigDecimal> sum = new HashMap<>(termsOver(layout));
+        addInto(sum, that.termsOver(layout));
+        return new Polynomial(layout, sum);
+    }
+
+    /**
+     * @param that another polynomial
+     * @return the product of this and that, computed by heap-based sparse multiplication in time
+     *         O(n*m*log(min(n, m))) for polynomials of n and m terms
+     * @throws ArithmeticException if some monomial of the product has total degree greater than MAX_DEGREE
+     */
+    public Polynomial multiply(Polynomial that) {
+        List<Variable> layout = union(variables, that.variables);
+        return new Polynomial(layout, multiply(termsOver(layout), that.termsOver(layout)));
+    }
+
+    /**
+     * @param var the variable to differentiate with respect to
+     * @return the derivative of this polynomial with respect to var, computed in time linear in the
+     *         number of terms
+     */
+    public Polynomial differentiate(Variable var) {
+        int k = variables.indexOf(var);
+        Map<Monomial, BigDecimal> derivative = new HashMap<>();
+        if (k < 0) {
+            return new Polynomial(variables, derivative);
+        }
+        // distinct monomials have distinct derivatives, so no two terms merge
+        for (Map.Entry<Monomial, BigDecimal> term : terms.entrySet()) {
+            Monomial m = term.getKey();
+            int exponent = m.exponent(k);
+            if (exponent > 0) {
+                long[] words = m.words.clone();
+                words[k / FIELDS_PER_WORD] -= 1L << shift(k);
+                derivative.put(new Monomial(words, m.degree - 1), term.getValue().multiply(BigDecimal.valueOf(exponent)));
+            }
+        }
+        return new Polynomial(variables, derivative);
+    }
+
+    /**
+     * @param environment maps variables to values; may give values to any variables
+     * @return this polynomial with every variable of environment replaced by its value
+     */
+    public Polynomial substitute(Map<Variable, NonNegativeNum> environment) {
+        BigDecimal[] values = new BigDecimal[variables.size()];
+        for (int k = 0; k < values.length; k ++) {
+            NonNegativeNum value = environment.get(variables.get(k));
+            values[k] = value == null ? null : value.numericValue();
+        }
+        Map<Monomial, BigDecimal> substituted = new HashMap<>();
+        for (Map.Entry<Monomial, BigDecimal> term : terms.entrySet()) {
+            Monomial m = term.getKey();
+            BigDecimal coefficient = term.getValue();
+            long[] words = m.words.clone();
+            int degree = m.degree;
+            for (int k = 0; k < values.length; k ++) {
+                int exponent = m.exponent(k);
+                if (values[k] != null && exponent > 0) {
+                    coefficient = coefficient.multiply(values[k].pow(exponent));
+                    words[k / FIELDS_PER_WORD] &= ~(FIELD_MASK << shift(k));
+                    degree -= exponent;
+                }
+            }
+            substituted.merge(new Monomial(words, degree), coefficient, BigDecimal::add);
+        }
+        return new Polynomial(variables, substituted);
+    }
+
+    /**
+     * @param environment maps variables to values; must give a value to every variable of this polynomial
+     * @return the exact value of this polynomial at environment
+     * @throws IllegalArgumentException if environment misses a variable of this polynomial
+     */
+    public NonNegativeNum evaluate(Map<Variable, NonNegativeNum> environment) {
+        for (Variable var : variables) {
+            if (!environment.containsKey(var)) {
+                throw new IllegalArgumentException("no value for variable " + var);
+            }
+        }
+        BigDecimal value = BigDecimal.ZERO;
+        for (BigDecimal coefficient : substitute(environment).terms.values()) {
+            value = value.add(coefficient);
+        }
+        return (NonNegativeNum) Expression.make(value);
+    }
+
+    /**
+     * @return an expression equal to this polynomial: the sum of its terms in graded lexicographic
+     *         order, each the product of its coefficient (omitted if it is 1 and the term has variables)
+     *         and its variables in order of their names, each repeated as often as its exponent.
+     *         The zero polynomial is the number 0.
+     */
+    public Expression toExpression() {
+        if (terms.isEmpty()) {
+            return NonNegativeNum.zero;
+        }
+        List<Expression> summands = new ArrayList<>(terms.size());
+        for (Monomial m : sortedMonomials(terms)) {
+            BigDecimal coefficient = terms.get(m);
+            List<Expression> factors = new ArrayList<>(m.degree + 1);
+            if (m.degree == 0 || coefficient.compareTo(BigDecimal.ONE) != 0) {
+                factors.add(Expression.make(coefficient));
+            }
+            for (int k = 0; k < variables.size(); k ++) {
+                Expression var = Interner.intern(variables.get(k));
+                for (int power = m.exponent(k); power > 0; power --) {
+                    factors.add(var);
+                }
+            }
+            summands.add(Expression.productOf(factors));
+        }
+        return Expression.sumOf(summands);
+    }
+
+    /**
+     * @param thatObject any object
+     * @return true if and only if thatObject is a Polynomial with the same coefficient for every monomial
+     */
+    @Override
+    public boolean equals(Object thatObject) {
+        if (!(thatObject instanceof Polynomial)) {
+            return false;
+        }
+        Polynomial that = (Polynomial) thatObject;
+        return variables.equals(that.variables) && terms.equals(that.terms);
+    }
+
+    @Override
+    public int hashCode() {
+        return terms.hashCode();
+    }
+
+    /**
+     * @return the text of toExpression()
+     */
+    @Override
+    public String toString() {
+        return toExpression().toString();
+    }
+}
@@ -1,6 +1,6 @@
 package expressivo;
 
-import java.math.BigDecimal;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -13,8 +13,10 @@ public class Product implements Expression {
      * Rep invariant:
      * terms is a List with at least two items. 
      * summands is a list with only one item, the current Product instance this. 
-     * stringRep is a String of at least 3 letters consisting of only letters, numbers, spaces, and '.','*','+','(',')' chars. 
-     * It must have the '*' char. 
+     * stringRep is null, or the String written by appendTo, of at most Sum.MAX_CACHED_STRING_LENGTH chars.
+     * occurrences is Occurrences.union(terms), and foldable is Occurrences.foldable(terms, occurrences).
+     * The text written by appendTo is a String of at least 3 letters consisting of only letters, numbers, spaces,
+     * and '.','*','+','(',')' chars. It must have the '*' char. 
      * 
      * 
      * Abstraction Function: The sequential list of the terms represents the mathematical product of 
@@ -23,24 +25,48 @@ public class Product implements Expression {
      * Safety from rep exposure argument: 
      * terms is an immutable reference and constructed as an immutable List
      * summands arg is same as terms
-     * stringRep is immutable reference and immutable object
+     * stringRep is a cache of an immutable String, only ever set to the text appendTo writes
      * hashCode is immutable object and reference.
+     * occurrences and foldable are immutable primitives.
+     * 
+     * Thread safety argument: every field but stringRep is final, so a Product is fully built when any
+     * thread sees it. stringRep is a String, which is immutable and safe to publish through a race,
+     * and every thread that sets it sets it to equal text, so races on it are benign.
      * 
      */
     
-    List<Expression> terms;
-    List<Expression> summands;
-    private final String stringRep;
+    final List<Expression> terms;
+    final List<Expression> summands;
+    private String stringRep;
     private final int hashCode;
+    private final long occurrences;
+    private final boolean foldable;
 
-    private void checkRep() {
+    /*
+     * Checks the rep invariant, except the text written by appendTo, which toString() checks when
+     * it renders it. Called once by the constructors, and by Expression.validate.
+     */
+    void checkRep() {
+        checkShape();
+        assert hashCode == terms.hashCode();
+        assert occurrences == Occurrences.union(terms);
+        assert foldable == Occurrences.foldable(terms, occurrences);
+        for (Expression term : terms) {
+            assert !(term instanceof Product);
+        }
+    }
+    
+    
+    /*
+     * Checks the parts of the rep invariant that take O(1) time.
+     */
+    private void checkShape() {
         assert terms.size() >1;
         assert summands.size() == 1;
         assert summands.get(0) == (this);
-        Sum.assertValidString(stringRep, "*");
+        assert stringRep == null || stringRep.length() <= Sum.MAX_CACHED_STRING_LENGTH;
     }
     
-    
     @Override
     public List<Expression> getSummands() {
         return summands;
@@ -51,22 +77,6 @@ public class Product implements Expression {
         return terms;
     }
 
-    private String initStringRep() {
-        List<String> result = new ArrayList<>();
-
-        for (Expression e : terms) {
-            String toAdd = e.toString();
-            if (e.getSummands().size() > 1) {
-                toAdd = "(" + toAdd + ")";
-            }
-            result.add(toAdd);
-            result.add("*");
-        }
-        result.remove(result.size() - 1);
-
-        return String.join("", result);
-    }
-
     private static void addProductTerms(Expression e, List<Expression> addTo ) {
         for (Expression exp : e.getProdTerms()) {
             addTo.add(exp);
@@ -92,14 +102,39 @@ public class Product implements Expression {
 
         summands = Collections.unmodifiableList(Arrays.asList(this));
         hashCode = terms.hashCode();
-        stringRep = initStringRep();
+        occurrences = Occurrences.union(terms);
+        foldable = Occurrences.foldable(terms, occurrences);
+        checkRep();
     }
 
-    private Product(List<Expression> sequence ) {
+    /*
+     * Builds a Product directly from its terms, without copying them. Requires that sequence has at
+     * least two items, that none of them is a Product, and that nobody modifies sequence afterwards.
+     */
+    Product(List<Expression> sequence ) {
         terms = Collections.unmodifiableList(sequence);
         summands = Collections.unmodifiableList(Arrays.asList(this));
         hashCode = terms.hashCode();
-        stringRep = initStringRep();
+        occurrences = Occurrences.union(terms);
+        foldable = Occurrences.foldable(terms, occurrences);
+        checkRep();
+    }
+
+    /*
+     * Builds a Product directly from its terms without copying or reading them, given what the other
+     * constructors would compute from them: hashCode must be sequence.hashCode(), occurrences must be
+     * Occurrences.union(sequence), and foldable must be Occurrences.foldable(sequence, occurrences).
+     * Requires the same of sequence as Product(List). Only the O(1) parts of the rep invariant are
+     * checked, so products over long views of shared lists take constant time each; Expression.validate
+     * checks the rest.
+     */
+    Product(List<Expression> sequence, int hashCode, long occurrences, boolean foldable) {
+        terms = Collections.unmodifiableList(sequence);
+        summands = Collections.unmodifiableList(Arrays.asList(this));
+        this.hashCode = hashCode;
+        this.occurrences = occurrences;
+        this.foldable = foldable;
+        checkShape();
     }
     
     /**
@@ -123,9 +158,35 @@ public class Product implements Expression {
      */
     @Override
     public String toString() {
+        String result = stringRep;
+        if (result == null) {
+            result = Sum.render(this);
+            Sum.assertValidString(result, "*");
+            if (result.length() <= Sum.MAX_CACHED_STRING_LENGTH) {
+                stringRep = result;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Returns the cached result of toString(), or null if it is not cached.
+     */
+    String cachedString() {
         return stringRep;
     }
 
+    /**
+     * Writes the string representation of this Product, as specified by toString(), to out.
+     * 
+     * @param out where to write the representation
+     * @throws IOException if out throws IOException
+     */
+    @Override
+    public void appendTo(Appendable out) throws IOException {
+        Sum.write(this, out);
+    }
+
     /**
      * Returns a boolean indicating if thatObject equals the current Product
      * instance.
@@ -143,11 +204,12 @@ public class Product implements Expression {
      */
     @Override
     public boolean equals(Object thatObject) {
+        if (this == thatObject) return true;
         if (!(thatObject instanceof Product)) return false;
         Product that = (Product) thatObject;
+        if (hashCode != that.hashCode) return false;
         
-        checkRep();
-        return terms.equals(that.terms);
+        return Traversal.equal(this, that);
     }
 
     /**
@@ -162,53 +224,34 @@ public class Product implements Expression {
         return hashCode;
     }
 
+    /*
+     * Returns the summary of the variables of this Product; see Occurrences.
+     */
+    long occurrences() {
+        return occurrences;
+    }
 
-    static private Expression differentiateTwoProdTerms (Expression left, Expression right, Variable var) {
-        Expression result; 
-        
-        Expression first = new Product (left, right.differentiate(var));
-        Expression second = new Product (left.differentiate(var), right );
-        result = new Sum(first,second);
-        return result;
+    /*
+     * Returns whether simplify folds some part of this Product into a number whatever the environment.
+     */
+    boolean foldable() {
+        return foldable;
     }
-    
+
+
+    /**
+     * Applies the product rule successively, as specified by Expression.differentiate.
+     * Repeated subexpressions are differentiated once; see Differentiator.
+     */
     @Override
     public Expression differentiate(Variable var) {
-        // TODO Auto-generated method stub
-        int length = terms.size();
-        if (length == 2) {
-            return Product.differentiateTwoProdTerms(terms.get(0), terms.get(1), var);
-        }   
-        else {
-            Expression result = Product.differentiateTwoProdTerms(new Product(terms.subList(0, length-1))
-                , terms.get(length-1),var);
-            return result;
-        }
+        return new Differentiator(var).differentiate(this);
     }
 
 
     @Override
     public Expression simplify(Map<Variable, NonNegativeNum> environment) {
-        // TODO Auto-generated method stub
-        boolean numeric = true;
-        
-        List <Expression> prodTerms = new ArrayList<>();
-        
-        for (Expression e: terms) {
-            Expression simple = e.simplify(environment);
-            if (!simple.isNumeric()) numeric = false;
-            prodTerms.add(simple);
-        }
-        
-        if (!numeric) return new Product(prodTerms);
-        else {
-            BigDecimal result = new BigDecimal(1);
-            for (Expression term : prodTerms) {
-                NonNegativeNum number = (NonNegativeNum) term;
-                result = result.multiply(number.numericValue());
-            }
-            return new NonNegativeNum(result);
-        }
+        return new Simplifier(environment).simplify(this);
     }
 
 
@@ -0,0 +1,130 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The result of common subexpression elimination on an Expression: an equal expression in which
+ * every set of structurally equal subtrees is one shared object, together with how many nodes
+ * the sharing saves.
+ *
+ * Subtrees are matched by their structural hash code as a fingerprint, confirmed with equals, and
+ * replaced by their canonical interned instance, so the shared expression also shares subtrees
+ * with every other interned Expression. Traversals that visit each distinct node object once,
+ * such as simplify, the numeric derivative engines, compile and variables(), then do the work for
+ * a repeated subtree only once.
+ */
+public class SharedExpression {
+
+    private final Expression expression;
+    private final long originalNodes;
+    private final long uniqueNodes;
+
+    /*
+     * Rep invariant:
+     * 0 < uniqueNodes <= originalNodes.
+     * uniqueNodes is the number of distinct node objects reachable from expression.
+     *
+     * Abstraction Function: represents expression, as rewritten from an expression whose tree had
+     * originalNodes nodes.
+     *
+     * Safety from rep exposure argument: expression is immutable, and the counts are primitives.
+     */
+
+    private void checkRep() {
+        assert 0 < uniqueNodes && uniqueNodes <= originalNodes;
+    }
+
+    private SharedExpression(Expression expression, long originalNodes, long uniqueNodes) {
+        this.expression = expression;
+        this.originalNodes = originalNodes;
+        this.uniqueNodes = uniqueNodes;
+        checkRep();
+    }
+
+    /**
+     * Eliminate the common subexpressions of an expression.
+     *
+     * @param original the expression to rewrite
+     * @return the shared form of original. Takes time linear in the number of distinct node objects
+     *         of original, even if its tree is much larger.
+     */
+    static SharedExpression share(Expression original) {
+        long originalNodes = ParseCache.nodeCount(original);
+        Expression shared = Traversal.foldShared(original, new Traversal.Fold<Expression>() {
+            @Override
+            public Expression leaf(Expression e) {
+                return Interner.intern(e);
+            }
+
+            @Override
+            public Expression node(Expression e, List<Expression> children) {
+                List<Expression> originalChildren = Traversal.children(e);
+                for (int i = 0; i < children.size(); i ++) {
+                    if (children.get(i) != originalChildren.get(i)) {
+                        List<Expression> sharedChildren = new ArrayList<>(children);
+                        return Interner.intern(e instanceof Sum ? new Sum(sharedChildren) : new Product(sharedChildren));
+                    }
+                }
+                return Interner.intern(e);
+            }
+        });
+        return new SharedExpression(shared, originalNodes, countUnique(shared));
+    }
+
+    /*
+     * Returns the number of distinct node objects reachable from e, walking each of them once.
+     */
+    private static long countUnique(Expression e) {
+        Set<Expression> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Traversal.walk(e, new Traversal.Visitor<RuntimeException>() {
+            @Override
+            public boolean enter(Expression node, Expression parent, int index) {
+                return seen.add(node);
+            }
+
+            @Override
+            public void leave(Expression node, Expression parent, int index) {
+            }
+        });
+        return seen.size();
+    }
+
+    /**
+     * @return an expression equal to the original one, in which structurally equal subexpressions
+     *         are the same object
+     */
+    public Expression expression() {
+        return expression;
+    }
+
+    /**
+     * @return the number of nodes in the tree of the original expression, counting a subexpression
+     *         once for every place it occurs
+     */
+    public long originalNodes() {
+        return originalNodes;
+    }
+
+    /**
+     * @return the number of distinct node objects in expression()
+     */
+    public long uniqueNodes() {
+        return uniqueNodes;
+    }
+
+    /**
+     * @return originalNodes() - uniqueNodes(), the number of nodes that sharing saves
+     */
+    public long nodesSaved() {
+        return originalNodes - uniqueNodes;
+    }
+
+    @Override
+    public String toString() {
+        return "SharedExpression[original nodes " + originalNodes + ", unique nodes " + uniqueNodes + "]";
+    }
+}
@@ -0,0 +1,85 @@
+package expressivo;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simplifies expressions in one bottom-up traversal, as specified by Expression.simplify.
+ *
+ * Each Sum and Product is rebuilt from its simplified children, and folded into a single
+ * NonNegativeNum when all of them are numbers. The numbers are folded with one reused
+ * NonNegativeNum.Accumulator, so small values fold without allocating anything but the result.
+ * A subexpression shared by several parents is simplified once.
+ *
+ * A Sum or Product that simplification cannot change, because it is not foldable and its variable
+ * summary rules out every variable of the environment (see Occurrences), is returned in O(1)
+ * without being traversed.
+ */
+class Simplifier implements Traversal.Fold<Expression> {
+
+    private final Map<Variable, NonNegativeNum> environment;
+    private final long summary;
+    private final NonNegativeNum.Accumulator accumulator = new NonNegativeNum.Accumulator();
+
+    /*
+     * Rep invariant: summary is Occurrences.of(environment.keySet()). accumulator is only used
+     * within one call to node.
+     *
+     * Abstraction Function: represents simplification with the variables of environment replaced
+     * by their values.
+     *
+     * Safety from rep exposure argument: environment is never modified or returned, summary is
+     * an immutable primitive, and accumulator is never returned.
+     */
+
+    /**
+     * @param environment the values of the variables to replace
+     */
+    Simplifier(Map<Variable, NonNegativeNum> environment) {
+        this.environment = environment;
+        this.summary = Occurrences.of(environment.keySet());
+    }
+
+    /**
+     * @param e an expression
+     * @return e simplified as specified by Expression.simplify
+     */
+    Expression simplify(Expression e) {
+        return Traversal.foldShared(e, this);
+    }
+
+    @Override
+    public Expression known(Expression e) {
+        if ((e instanceof Sum || e instanceof Product) && !Occurrences.foldable(e)
+                && !Occurrences.mayOccur(e, summary)) {
+            // no variable is replaced and no grouping of numbers folded, so e simplifies to itself
+            return Interner.intern(e);
+        }
+        return null;
+    }
+
+    @Override
+    public Expression leaf(Expression e) {
+        return e.simplify(environment);
+    }
+
+    @Override
+    public Expression node(Expression e, List<Expression> simplified) {
+        boolean sum = e instanceof Sum;
+        for (Expression term : simplified) {
+            if (!term.isNumeric()) {
+                return sum ? Expression.sumOf(simplified) : Expression.productOf(simplified);
+            }
+        }
+        accumulator.reset((NonNegativeNum) simplified.get(0));
+        for (int i = 1; i < simplified.size(); i ++) {
+            NonNegativeNum number = (NonNegativeNum) simplified.get(i);
+            if (sum) {
+                accumulator.add(number);
+            } else {
+                accumulator.multiply(number);
+            }
+        }
+        return Interner.intern(accumulator.result());
+    }
+}
@@ -1,5 +1,6 @@
 package expressivo;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -11,17 +12,25 @@ public class Sum implements Expression {
 
     private final List<Expression> terms;
     private final List<Expression> prodTerms;
-    private final String stringRep;
+    private String stringRep;
     private final int hashCode;
+    private final long occurrences;
+    private final boolean foldable;
 
-    static final List<Character> validChars = Collections.unmodifiableList(Arrays.asList('*','+','.','(',')',' '));
+    /*
+     * Longest rendered text that toString() keeps after building it. Longer text is rebuilt on
+     * every call, so huge expressions never pin a copy of their text in memory.
+     */
+    static final int MAX_CACHED_STRING_LENGTH = 1 << 12;
     
     /*
      * Rep invariant:
      * terms is a List with at least two items. 
      * prodTerms is a list with only one item, the current Sum instance this. 
-     * stringRep is a String of at least 3 letters consisting of only letters, numbers, spaces, and '.','*','+','(',')' chars. 
-     * It must have the '+' char. 
+     * stringRep is null, or the String written by appendTo, of at most MAX_CACHED_STRING_LENGTH chars.
+     * occurrences is Occurrences.union(terms), and foldable is Occurrences.foldable(terms, occurrences).
+     * The text written by appendTo is a String of at least 3 letters consisting of only letters, numbers, spaces,
+     * and '.','*','+','(',')' chars. It must have the '+' char. 
      * 
      * 
      * Abstraction Function: The sequential list of the terms represents the mathematical addition of 
@@ -30,28 +39,57 @@ public class Sum implements Expression {
      * Safety from rep exposure argument: 
      * terms is an immutable reference and constructed as an immutable List
      * prodTerms arg is same as terms
-     * stringRep is immutable reference and immutable object
+     * stringRep is a cache of an immutable String, only ever set to the text appendTo writes
      * hashCode is immutable object and reference.
+     * occurrences and foldable are immutable primitives.
+     * 
+     * Thread safety argument: every field but stringRep is final, so a Sum is fully built when any
+     * thread sees it. stringRep is a String, which is immutable and safe to publish through a race,
+     * and every thread that sets it sets it to equal text, so races on it are benign.
      * 
      */
 
+    /*
+     * Asserts that stringRep is valid text for a Sum or Product, containing mustHave. Called once
+     * on every text that toString() renders.
+     */
     static void assertValidString(String stringRep, String mustHave) {
         assert stringRep.length() > 2;
         assert stringRep.contains(mustHave);
-        int length = stringRep.length();
-        for (int i = 0; i < length; i ++ ) {
-            Character c = stringRep.charAt(i);
-            assert Character.isLetterOrDigit(c) || validChars.contains(c) ;
+        assert isValidText(stringRep);
+    }
+
+    private static boolean isValidText(String text) {
+        int length = text.length();
+        for (int i = 0; i < length; i ++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '*': case '+': case '.': case '(': case ')': case ' ':
+                break;
+            default:
+                if (!Character.isLetterOrDigit(c)) {
+                    return false;
+                }
+            }
         }
-  
+        return true;
     }
     
-    private void checkRep() {
+    /*
+     * Checks the rep invariant, except the text written by appendTo, which toString() checks when
+     * it renders it. Called once by the constructors, and by Expression.validate.
+     */
+    void checkRep() {
         assert terms.size() >1;
         assert prodTerms.size() == 1;
         assert prodTerms.get(0) == this;
-        assertValidString(stringRep, "+");
-        
+        assert stringRep == null || stringRep.length() <= MAX_CACHED_STRING_LENGTH;
+        assert hashCode == terms.hashCode();
+        assert occurrences == Occurrences.union(terms);
+        assert foldable == Occurrences.foldable(terms, occurrences);
+        for (Expression term : terms) {
+            assert !(term instanceof Sum);
+        }
     }
     
     @Override
@@ -70,15 +108,67 @@ public class Sum implements Expression {
         }
     }
 
-    private String initStringRep() {
-        List<String> result = new ArrayList<>();
-        for (Expression e : this.terms) {
-            result.add(e.toString());
-            result.add("+");
+    /*
+     * Returns the text e.appendTo writes, built in a single traversal of e.
+     */
+    static String render(Expression e) {
+        StringBuilder out = new StringBuilder();
+        try {
+            e.appendTo(out);
+        } catch (IOException ioe) {
+            throw new AssertionError("StringBuilder does not throw IOException", ioe);
         }
-        result.remove(result.size() - 1);
-        return String.join("", result);
+        return out.toString();
+    }
+
+    /*
+     * Writes the text of e to out in one walk of e: summands separated by '+', product terms
+     * separated by '*', and parentheses around every Sum that is a product term. A subexpression
+     * whose text is already cached, such as one shared with an expression printed before, is
+     * written from the cache without walking it.
+     */
+    static void write(Expression e, Appendable out) throws IOException {
+        Traversal.walk(e, new Traversal.Visitor<IOException>() {
+            @Override
+            public boolean enter(Expression node, Expression parent, int index) throws IOException {
+                if (index > 0) {
+                    out.append(parent instanceof Sum ? '+' : '*');
+                }
+                if (parent instanceof Product && node instanceof Sum) {
+                    out.append('(');
+                }
+                if (Traversal.children(node).isEmpty()) {
+                    node.appendTo(out);
+                    return false;
+                }
+                String cached = node == e ? null : cachedString(node);
+                if (cached != null) {
+                    out.append(cached);
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public void leave(Expression node, Expression parent, int index) throws IOException {
+                if (parent instanceof Product && node instanceof Sum) {
+                    out.append(')');
+                }
+            }
+        });
+    }
 
+    /*
+     * Returns the text of e if e is a Sum or Product whose toString() result is cached, otherwise null.
+     */
+    static String cachedString(Expression e) {
+        if (e instanceof Sum) {
+            return ((Sum) e).stringRep;
+        }
+        if (e instanceof Product) {
+            return ((Product) e).cachedString();
+        }
+        return null;
     }
 
     /**
@@ -99,15 +189,23 @@ public class Sum implements Expression {
         
         prodTerms = Collections.unmodifiableList(Arrays.asList(this));
         hashCode = terms.hashCode();
-        stringRep = initStringRep();
+        occurrences = Occurrences.union(terms);
+        foldable = Occurrences.foldable(terms, occurrences);
+        checkRep();
 
     }
     
-    private Sum( List<Expression> sequence ) {
+    /*
+     * Builds a Sum directly from its summands, without copying them. Requires that sequence has at
+     * least two items, that none of them is a Sum, and that nobody modifies sequence afterwards.
+     */
+    Sum( List<Expression> sequence ) {
         terms = Collections.unmodifiableList(sequence);
         prodTerms = Collections.unmodifiableList(Arrays.asList(this));
         hashCode = terms.hashCode();
-        stringRep = initStringRep();
+        occurrences = Occurrences.union(terms);
+        foldable = Occurrences.foldable(terms, occurrences);
+        checkRep();
     }
 
     /**
@@ -133,7 +231,26 @@ public class Sum implements Expression {
      */
     @Override
     public String toString() {
-        return stringRep;
+        String result = stringRep;
+        if (result == null) {
+            result = render(this);
+            assertValidString(result, "+");
+            if (result.length() <= MAX_CACHED_STRING_LENGTH) {
+                stringRep = result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the string representation of this Sum, as specified by toString(), to out.
+     * 
+     * @param out where to write the representation
+     * @throws IOException if out throws IOException
+     */
+    @Override
+    public void appendTo(Appendable out) throws IOException {
+        write(this, out);
     }
 
     /**
@@ -152,11 +269,12 @@ public class Sum implements Expression {
      */
     @Override
     public boolean equals(Object thatObject) {
+        if (this == thatObject) return true;
         if (!(thatObject instanceof Sum)) return false;
         Sum that = (Sum) thatObject;
+        if (hashCode != that.hashCode) return false;
         
-        checkRep();
-        return terms.equals(that.terms);
+        return Traversal.equal(this, that);
     }
 
     /**
@@ -171,6 +289,20 @@ public class Sum implements Expression {
         return hashCode;
     }
 
+    /*
+     * Returns the summary of the variables of this Sum; see Occurrences.
+     */
+    long occurrences() {
+        return occurrences;
+    }
+
+    /*
+     * Returns whether simplify folds some part of this Sum into a number whatever the environment.
+     */
+    boolean foldable() {
+        return foldable;
+    }
+
     public static void main(String args[]) {
         System.out.println("here we are  " + 234.23423423334234234234234233423434 + "  " + (int) (34.9999));
         System.out.println((float) 1 == 1.00000001);
@@ -193,64 +325,18 @@ public class Sum implements Expression {
         System.out.println(joined);
     }
 
+    /**
+     * Differentiates every summand, keeping their order, as specified by Expression.differentiate.
+     * Repeated subexpressions are differentiated once; see Differentiator.
+     */
     @Override
     public Expression differentiate(Variable var) {
-        // TODO Auto-generated method stub
-        /*
-        List<Expression> diffSummands = new ArrayList<>() ;
-        
-        for (Expression e: this.terms) {
-            Expression diff = e.differentiate(var);
-            diffSummands.add(diff);
-        }
-        
-        Expression result = new Sum (diffSummands.get(0), diffSummands.get(1) );
-        int length = diffSummands.size();
-        for (int i = 2; i < length; i ++) {
-            result = new Sum (result, diffSummands.get(i));
-        }
-        
-        return result;
-        */
-        //recursive method below:
-        int length = this.terms.size();
-        if (length == 2) {
-            return new Sum(this.terms.get(0).differentiate(var),this.terms.get(1).differentiate(var));
-        }
-        else
-            return new Sum ( new Sum (this.terms.subList(0, length-1)  ).differentiate(var),
-                this.terms.get(length-1).differentiate(var)  );
+        return new Differentiator(var).differentiate(this);
     }
 
     @Override
     public Expression simplify(Map<Variable, NonNegativeNum> environment) {
-        // TODO Auto-generated method stub
-        
-        boolean numeric = true;
-        
-        List <Expression> summands = new ArrayList<>();
-        
-        for (Expression e: terms) {
-            Expression simple = e.simplify(environment);
-            if (!simple.isNumeric()) numeric = false;
-            summands.add(simple);
-        }
-        
-        // System.out.println(summands);
-        
-        if (!numeric) return new Sum(summands);
-        else {
-            BigDecimal result = new BigDecimal(0);
-            for (Expression term :summands) {
-                NonNegativeNum number = (NonNegativeNum) term;
-                
-                //System.out.println(number);
-                result = result.add(number.numericValue());
-              
-            }
-            //System.out.println(result);
-            return new NonNegativeNum(result);
-        }
+        return new Simplifier(environment).simplify(this);
     }
 
     @Override
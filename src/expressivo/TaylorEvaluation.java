@@ -0,0 +1,109 @@
+package expressivo;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Taylor-mode automatic differentiation: evaluates every derivative of an expression with respect
+ * to one variable, up to a given order, in one bottom-up traversal.
+ *
+ * Every node is computed as its truncated Taylor series in h around the point, with the variable
+ * differentiated by replaced by (its value + h): an array c of order + 1 coefficients, where c[j]
+ * is the node's j-th derivative divided by j!. A number or another variable is the constant series,
+ * and the variable differentiated by is (value, 1, 0, ...). A sum adds coefficients, and a product
+ * multiplies series with the Cauchy product truncated at order. Takes O(order) time per summand and
+ * O(order^2) per product term, and never builds a derivative expression. A subexpression shared by
+ * several parents is evaluated once, and one whose variable summary rules out the variable (see
+ * Occurrences) is a constant series computed in O(1) per term.
+ */
+class TaylorEvaluation {
+
+    private TaylorEvaluation() {
+        // not instantiable
+    }
+
+    /**
+     * @param e the expression to differentiate
+     * @param var the variable to differentiate with respect to
+     * @param point maps variables to values; must give a value to every variable in e
+     * @param order the highest derivative to compute, nonnegative
+     * @return an array d of order + 1 doubles, where d[j] is the j-th derivative of e with respect to
+     *         var at point (d[0] being the value of e), computed with double arithmetic
+     * @throws IllegalArgumentException if order is negative, or point misses a variable of e
+     */
+    static double[] derivativesAt(Expression e, Variable var, Map<Variable, Double> point, int order) {
+        if (order < 0) {
+            throw new IllegalArgumentException("order must be nonnegative: " + order);
+        }
+        long summary = Occurrences.of(var);
+        double[] series = Traversal.foldShared(e, new Traversal.Fold<double[]>() {
+            @Override
+            public double[] leaf(Expression leaf) {
+                double[] constant = new double[order + 1];
+                if (leaf instanceof NonNegativeNum) {
+                    constant[0] = ((NonNegativeNum) leaf).doubleValue();
+                    return constant;
+                }
+                Double value = point.get(leaf);
+                if (value == null) {
+                    throw new IllegalArgumentException("no value for variable " + leaf);
+                }
+                constant[0] = value;
+                if (order > 0 && leaf.equals(var)) {
+                    constant[1] = 1;
+                }
+                return constant;
+            }
+
+            @Override
+            public double[] node(Expression node, List<double[]> terms) {
+                if (!Occurrences.mayOccur(node, summary)) {
+                    // a constant series: only its value needs computing
+                    double[] constant = new double[order + 1];
+                    constant[0] = terms.get(0)[0];
+                    for (int i = 1; i < terms.size(); i ++) {
+                        constant[0] = node instanceof Sum ? constant[0] + terms.get(i)[0] : constant[0] * terms.get(i)[0];
+                    }
+                    return constant;
+                }
+                // results may be shared between parents, so they are never modified
+                double[] result = terms.get(0).clone();
+                for (int i = 1; i < terms.size(); i ++) {
+                    double[] term = terms.get(i);
+                    if (node instanceof Sum) {
+                        for (int j = 0; j <= order; j ++) {
+                            result[j] += term[j];
+                        }
+                    } else {
+                        result = truncatedProduct(result, term, order);
+                    }
+                }
+                return result;
+            }
+        });
+        // the j-th derivative is j! times the j-th coefficient
+        series = series.clone();
+        double factorial = 1;
+        for (int j = 1; j <= order; j ++) {
+            factorial *= j;
+            series[j] *= factorial;
+        }
+        return series;
+    }
+
+    /*
+     * Returns the first order + 1 coefficients of the product of the series a and b.
+     */
+    private static double[] truncatedProduct(double[] a, double[] b, int order) {
+        double[] product = new double[order + 1];
+        for (int i = 0; i <= order; i ++) {
+            if (a[i] == 0) {
+                continue;
+            }
+            for (int j = 0; i + j <= order; j ++) {
+                product[i + j] += a[i] * b[j];
+            }
+        }
+        return product;
+    }
+}
@@ -0,0 +1,137 @@
+package expressivo;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A thread-safe evaluator of an Expression over a double[] array of variable values that starts
+ * out interpreting the expression and switches to a compiled form once it is hot.
+ *
+ * Every evaluation first runs on a BoundExpression. After threshold evaluations, compilation to a
+ * CompiledExpression is started on a shared background thread, and callers keep using the
+ * interpreter until the compiled form is ready; from then on every evaluation uses it. Both tiers
+ * are ordinary objects owned by this instance, so they are garbage collected together with it
+ * once it is no longer referenced.
+ */
+public class TieredExpression {
+
+    /**
+     * Number of evaluations after which compilation starts, when no threshold is given.
+     */
+    public static final int DEFAULT_THRESHOLD = 10000;
+
+    private static final ExecutorService COMPILER = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "expression-compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Expression expression;
+    private final BoundExpression interpreter;
+    private final int threshold;
+
+    private int invocations = 0;
+    private volatile boolean compilationRequested = false;
+    private volatile CompiledExpression compiled = null;
+
+    /*
+     * Rep invariant:
+     * threshold > 0.
+     * interpreter is expression bound to interpreter.variables().
+     * compiled is null, or expression compiled over interpreter.variables().
+     * compiled != null implies compilationRequested.
+     *
+     * Abstraction Function: represents expression over the variables interpreter.variables(),
+     * together with the tier (interpreted, or compiled) that currently evaluates it.
+     *
+     * Safety from rep exposure argument: expression, interpreter and compiled are immutable and
+     * never returned. The counters are primitives.
+     *
+     * Thread safety argument: invocations is only a hint and may lose increments under races,
+     * which just delays compilation. compilationRequested is set inside a synchronized block, so
+     * compilation is submitted at most once. compiled is volatile and only set once, by the
+     * compiler thread, to an immutable CompiledExpression.
+     */
+
+    private void checkRep() {
+        assert threshold > 0;
+        assert compiled == null || compilationRequested;
+    }
+
+    /**
+     * Create an evaluator that compiles after DEFAULT_THRESHOLD evaluations.
+     *
+     * @param expression the expression to evaluate
+     * @param variables the variables to bind, as for Expression.bind
+     * @throws IllegalArgumentException if variables has duplicates, or misses a variable of expression
+     */
+    public TieredExpression(Expression expression, List<Variable> variables) {
+        this(expression, variables, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Create an evaluator.
+     *
+     * @param expression the expression to evaluate
+     * @param variables the variables to bind, as for Expression.bind
+     * @param threshold the number of evaluations after which compilation starts, must be positive
+     * @throws IllegalArgumentException if threshold is not positive, or if variables has duplicates
+     *         or misses a variable of expression
+     */
+    public TieredExpression(Expression expression, List<Variable> variables, int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("threshold must be positive: " + threshold);
+        }
+        this.expression = expression;
+        this.interpreter = expression.bind(variables);
+        this.threshold = threshold;
+        checkRep();
+    }
+
+    /**
+     * @return the bound variables, where the variable at index k is read from slot k of the values
+     *         passed to evaluate
+     */
+    public List<Variable> variables() {
+        return interpreter.variables();
+    }
+
+    /**
+     * Evaluate the expression.
+     *
+     * @param values the value of each bound variable, where values[k] is the value of variables().get(k)
+     * @return the value of the expression with each variable replaced by its value, computed with
+     *         double arithmetic as specified by BoundExpression.evaluate before this evaluator is
+     *         compiled, and by CompiledExpression.evaluate after
+     * @throws IllegalArgumentException if values.length != variables().size()
+     */
+    public double evaluate(double[] values) {
+        CompiledExpression fast = compiled;
+        if (fast != null) {
+            return fast.evaluate(values);
+        }
+        if (!compilationRequested && ++invocations >= threshold) {
+            requestCompilation();
+        }
+        return interpreter.evaluate(values);
+    }
+
+    private synchronized void requestCompilation() {
+        if (compilationRequested) {
+            return;
+        }
+        compilationRequested = true;
+        COMPILER.execute(() -> {
+            compiled = expression.compile(interpreter.variables());
+            checkRep();
+        });
+    }
+
+    /**
+     * @return true if and only if evaluate now uses the compiled form
+     */
+    public boolean isCompiled() {
+        return compiled != null;
+    }
+}
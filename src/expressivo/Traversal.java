@@ -0,0 +1,323 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stack-safe depth-first traversals of Expressions.
+ *
+ * Every traversal keeps its pending work on an explicit stack in the heap instead of recursing on
+ * the Java call stack, so the nesting depth of the expressions it handles is limited only by the
+ * heap. The children of a Sum are its summands and the children of a Product are its terms, in
+ * order; Variables and NonNegativeNums have no children.
+ */
+class Traversal {
+
+    /**
+     * Callbacks for walk, invoked on every node both before and after its children.
+     *
+     * @param <X> the checked exception the callbacks may throw, or RuntimeException if none
+     */
+    interface Visitor<X extends Exception> {
+
+        /**
+         * Called on a node before any of its children (pre-order).
+         *
+         * @param e the node
+         * @param parent the node's parent, or null if e is the root
+         * @param index the position of e among parent's children, or 0 if e is the root
+         * @return true to walk e's children, false to skip them
+         * @throws X if the visitor fails
+         */
+        boolean enter(Expression e, Expression parent, int index) throws X;
+
+        /**
+         * Called on a node after all its children (post-order), or right after enter if enter
+         * skipped them.
+         *
+         * @param e the node
+         * @param parent the node's parent, or null if e is the root
+         * @param index the position of e among parent's children, or 0 if e is the root
+         * @throws X if the visitor fails
+         */
+        void leave(Expression e, Expression parent, int index) throws X;
+    }
+
+    /**
+     * Callbacks for fold, which computes one non-null result per node from its children's results.
+     *
+     * @param <R> the type of result
+     */
+    interface Fold<R> {
+
+        /**
+         * @param e a node about to be folded
+         * @return the result for e if it is already known, in which case e's children are not
+         *         visited, or null to compute it
+         */
+        default R known(Expression e) {
+            return null;
+        }
+
+        /**
+         * @param e a node with no children
+         * @return the non-null result for e
+         */
+        R leaf(Expression e);
+
+        /**
+         * @param e a node with children
+         * @param results the results for e's children, in order; the fold never touches the list again
+         * @return the non-null result for e
+         */
+        R node(Expression e, List<R> results);
+    }
+
+    private Traversal() {
+        // not instantiable
+    }
+
+    /**
+     * @param e an expression
+     * @return the children of e: its summands if it is a Sum, its terms if it is a Product,
+     *         and an empty list otherwise
+     */
+    static List<Expression> children(Expression e) {
+        if (e instanceof Sum) {
+            return e.getSummands();
+        }
+        if (e instanceof Product) {
+            return e.getProdTerms();
+        }
+        return Collections.emptyList();
+    }
+
+    /*
+     * A node whose enter has been called but whose leave has not.
+     */
+    private static class Frame {
+        final Expression node;
+        final Expression parent;
+        final int index;
+        final List<Expression> children;
+        int next = 0;
+
+        Frame(Expression node, Expression parent, int index, List<Expression> children) {
+            this.node = node;
+            this.parent = parent;
+            this.index = index;
+            this.children = children;
+        }
+    }
+
+    /**
+     * Walk an expression depth first, calling visitor.enter on each node before its children and
+     * visitor.leave on it after them. Children are walked in order.
+     *
+     * @param root the expression to walk
+     * @param visitor the callbacks
+     * @throws X if a callback throws X, in which case the walk stops
+     */
+    static <X extends Exception> void walk(Expression root, Visitor<X> visitor) throws X {
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(enter(root, null, 0, visitor));
+        while (!stack.isEmpty()) {
+            Frame top = stack.peek();
+            if (top.next < top.children.size()) {
+                int index = top.next ++;
+                stack.push(enter(top.children.get(index), top.node, index, visitor));
+            } else {
+                stack.pop();
+                visitor.leave(top.node, top.parent, top.index);
+            }
+        }
+    }
+
+    private static <X extends Exception> Frame enter(Expression e, Expression parent, int index,
+            Visitor<X> visitor) throws X {
+        List<Expression> children = visitor.enter(e, parent, index)
+                ? children(e) : Collections.<Expression>emptyList();
+        return new Frame(e, parent, index, children);
+    }
+
+    /*
+     * A node whose children are being folded.
+     */
+    private static class Pending<R> {
+        final Expression node;
+        final List<Expression> children;
+        final List<R> results;
+
+        Pending(Expression node, List<Expression> children) {
+            this.node = node;
+            this.children = children;
+            this.results = new ArrayList<>(children.size());
+        }
+    }
+
+    /**
+     * Fold an expression bottom up: every node's result is computed after its children's, which are
+     * computed in order.
+     *
+     * @param root the expression to fold
+     * @param fold the callbacks
+     * @return the result for root
+     */
+    static <R> R fold(Expression root, Fold<R> fold) {
+        Deque<Pending<R>> stack = new ArrayDeque<>();
+        Expression e = root;
+        while (true) {
+            // descend from e until some node's result is known
+            R result = fold.known(e);
+            if (result == null) {
+                List<Expression> children = children(e);
+                if (!children.isEmpty()) {
+                    stack.push(new Pending<>(e, children));
+                    e = children.get(0);
+                    continue;
+                }
+                result = fold.leaf(e);
+            }
+            // hand the result up, completing every node it was the last child of
+            while (true) {
+                Pending<R> parent = stack.peek();
+                if (parent == null) {
+                    return result;
+                }
+                parent.results.add(result);
+                int done = parent.results.size();
+                if (done < parent.children.size()) {
+                    e = parent.children.get(done);
+                    break;
+                }
+                stack.pop();
+                result = fold.node(parent.node, parent.results);
+            }
+        }
+    }
+
+    /**
+     * Fold an expression bottom up as fold does, but compute the result for each distinct node object
+     * once: a subexpression that occurs several times as the same object, as in an interned or shared
+     * expression, gets its first result everywhere else without being traversed again. Takes time
+     * linear in the number of distinct node objects rather than in the size of the tree.
+     *
+     * @param root the expression to fold
+     * @param fold the callbacks; must give the same result whenever it is given the same node
+     * @return the result for root
+     */
+    static <R> R foldShared(Expression root, Fold<R> fold) {
+        Map<Expression, R> results = new IdentityHashMap<>();
+        return fold(root, new Fold<R>() {
+            @Override
+            public R known(Expression e) {
+                R result = results.get(e);
+                return result != null ? result : fold.known(e);
+            }
+
+            @Override
+            public R leaf(Expression e) {
+                R result = fold.leaf(e);
+                results.put(e, result);
+                return result;
+            }
+
+            @Override
+            public R node(Expression e, List<R> children) {
+                R result = fold.node(e, children);
+                results.put(e, result);
+                return result;
+            }
+        });
+    }
+
+    /*
+     * Number of pairs equal expands before it starts remembering them, so that short comparisons
+     * allocate nothing beyond their stack.
+     */
+    private static final int UNTRACKED_EXPANSIONS = 64;
+
+    /*
+     * A pair of node objects, compared by identity.
+     */
+    private static class Pair {
+        final Expression first;
+        final Expression second;
+
+        Pair(Expression first, Expression second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            return that instanceof Pair && ((Pair) that).first == first && ((Pair) that).second == second;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(first) + System.identityHashCode(second);
+        }
+    }
+
+    /**
+     * Compare two expressions for structural equality, as defined by Expression.equals.
+     *
+     * @param left an expression
+     * @param right another expression
+     * @return true if and only if left and right are structurally equal. Compares pairs of
+     *         subexpressions left to right, skipping pairs that are the same object and stopping
+     *         at the first pair of different variants, hash codes or leaves. In long comparisons, a
+     *         pair of node objects is compared once however often it recurs, so comparing two
+     *         differently shared forms of an expression takes time linear in their distinct nodes.
+     */
+    static boolean equal(Expression left, Expression right) {
+        Deque<Expression> pending = new ArrayDeque<>();
+        pending.push(left);
+        pending.push(right);
+        int expansions = 0;
+        Set<Pair> expanded = null;
+        while (!pending.isEmpty()) {
+            Expression b = pending.pop();
+            Expression a = pending.pop();
+            if (a == b) {
+                continue;
+            }
+            if (a.getClass() != b.getClass() || a.hashCode() != b.hashCode()) {
+                return false;
+            }
+            List<Expression> as = children(a);
+            List<Expression> bs = children(b);
+            if (as.isEmpty()) {
+                if (!a.equals(b)) {
+                    return false;
+                }
+                continue;
+            }
+            if (as.size() != bs.size()) {
+                return false;
+            }
+            // a pair expanded before is already equal, or will be found unequal through its first expansion
+            if (++ expansions > UNTRACKED_EXPANSIONS) {
+                if (expanded == null) {
+                    expanded = new HashSet<>();
+                }
+                if (!expanded.add(new Pair(a, b))) {
+                    continue;
+                }
+            }
+            for (int i = as.size() - 1; i >= 0; i --) {
+                pending.push(as.get(i));
+                pending.push(bs.get(i));
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,120 @@
+package expressivo;
+
+import java.math.BigDecimal;
+
+/**
+ * An immutable Expression in one variable compiled into coefficient form, for the fastest repeated
+ * evaluation of curves.
+ *
+ * The expression is normalized to its Polynomial, so x*x*x written out as a Product costs one
+ * coefficient rather than a multiplication per factor, and like terms are collected ahead of time.
+ * Low degrees are evaluated with Horner's scheme, one multiply-add per coefficient. From
+ * ESTRIN_DEGREE up, Estrin's scheme is used in blocks: each block of four coefficients is computed
+ * as (c0 + c1*x) + (c2 + c3*x)*x^2, whose halves are independent so the CPU can overlap them, and
+ * the blocks are combined with Horner's scheme in x^4, which shortens the chain of dependent
+ * operations about fourfold.
+ *
+ * Evaluation uses primitive double arithmetic, with the coefficients rounded to doubles once, so
+ * results may differ in the last bits from BoundExpression.evaluate.
+ */
+public class UnivariateExpression {
+
+    /**
+     * Lowest degree evaluated with Estrin's scheme rather than Horner's.
+     */
+    public static final int ESTRIN_DEGREE = 16;
+
+    private final Variable variable;
+    private final double[] coefficients;
+    private final int degree;
+
+    /*
+     * Rep invariant:
+     * degree >= 0, and degree is the highest i with coefficients[i] != 0, or 0 if there is none.
+     * coefficients.length == degree + 1 if degree < ESTRIN_DEGREE, otherwise the smallest multiple of 4
+     * greater than degree, with zeros past degree.
+     *
+     * Abstraction Function: represents the polynomial in variable whose coefficient of variable^i is
+     * coefficients[i].
+     *
+     * Safety from rep exposure argument: coefficients is created by compile and never returned.
+     * variable is immutable.
+     */
+
+    private void checkRep() {
+        assert degree >= 0;
+        assert coefficients.length == (degree < ESTRIN_DEGREE ? degree + 1 : (degree / 4 + 1) * 4);
+        for (int i = degree + 1; i < coefficients.length; i ++) {
+            assert coefficients[i] == 0;
+        }
+    }
+
+    private UnivariateExpression(Variable variable, double[] coefficients, int degree) {
+        this.variable = variable;
+        this.coefficients = coefficients;
+        this.degree = degree;
+        checkRep();
+    }
+
+    /**
+     * Compile an expression in one variable.
+     *
+     * @param expression the expression to compile
+     * @param variable the variable to evaluate expression in; expression must have no other variable
+     * @return a UnivariateExpression of expression in variable
+     * @throws IllegalArgumentException if expression has a variable other than variable
+     * @throws ArithmeticException if expression has degree greater than Polynomial.MAX_DEGREE
+     */
+    static UnivariateExpression compile(Expression expression, Variable variable) {
+        BigDecimal[] exact = expression.toPolynomial().coefficientsIn(variable);
+        int degree = exact.length - 1;
+        while (degree > 0 && exact[degree].doubleValue() == 0) {
+            degree --;
+        }
+        double[] coefficients = new double[degree < ESTRIN_DEGREE ? degree + 1 : (degree / 4 + 1) * 4];
+        for (int i = 0; i <= degree; i ++) {
+            coefficients[i] = exact[i].doubleValue();
+        }
+        return new UnivariateExpression(variable, coefficients, degree);
+    }
+
+    /**
+     * @return the variable of the expression
+     */
+    public Variable variable() {
+        return variable;
+    }
+
+    /**
+     * @return the degree of the expression in variable()
+     */
+    public int degree() {
+        return degree;
+    }
+
+    /**
+     * Evaluate the expression.
+     *
+     * @param x the value of variable()
+     * @return the value of the expression with variable() replaced by x, computed with double arithmetic
+     */
+    public double evaluate(double x) {
+        double[] c = coefficients;
+        if (degree < ESTRIN_DEGREE) {
+            double result = c[degree];
+            for (int i = degree - 1; i >= 0; i --) {
+                result = result * x + c[i];
+            }
+            return result;
+        }
+        double x2 = x * x;
+        double x4 = x2 * x2;
+        int i = c.length - 4;
+        double result = (c[i] + c[i + 1] * x) + (c[i + 2] + c[i + 3] * x) * x2;
+        for (i -= 4; i >= 0; i -= 4) {
+            double block = (c[i] + c[i + 1] * x) + (c[i + 2] + c[i + 3] * x) * x2;
+            result = result * x4 + block;
+        }
+        return result;
+    }
+}
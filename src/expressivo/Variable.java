@@ -1,5 +1,6 @@
 package expressivo;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -28,7 +29,10 @@ public class Variable implements Expression {
      * 
      */
     
-    private void checkRep() {
+    /*
+     * Checks the rep invariant. Called once by the constructor, and by Expression.validate.
+     */
+    void checkRep() {
         try {
             checkName();
         } catch (IllegalArgumentException error) {
@@ -41,8 +45,8 @@ public class Variable implements Expression {
     private void checkName() {
         if (name.isEmpty()) 
             throw new IllegalArgumentException();
-        for(Character c : name.toCharArray()) {
-            if (!Character.isAlphabetic(c))
+        for (int i = 0; i < name.length(); i ++) {
+            if (!Character.isAlphabetic(name.charAt(i)))
                 throw new IllegalArgumentException(); 
         }
     }
@@ -76,10 +80,14 @@ public class Variable implements Expression {
      */
     @Override
     public String toString() {
-        checkRep();
         return name;
     }
     
+    @Override
+    public void appendTo(Appendable out) throws IOException {
+        out.append(name);
+    }
+    
     /**
      * Returns a boolean indicating whether this variable expression is equivalent to another.
      * @param thatObject any Java object 
@@ -88,11 +96,11 @@ public class Variable implements Expression {
      */
     @Override
     public boolean equals(Object thatObject) {
-        
+        if (this == thatObject) return true;
         if (!(thatObject instanceof Variable)) return false;
         Variable that = (Variable) thatObject;
+        if (hashCode != that.hashCode) return false;
         
-        checkRep();
         return name.equals(that.name);
     }
     
@@ -102,7 +110,6 @@ public class Variable implements Expression {
      */
     @Override
     public int hashCode() {
-        checkRep();
         return hashCode;
     }
     
@@ -127,7 +134,7 @@ public class Variable implements Expression {
     public Expression simplify(Map<Variable, NonNegativeNum> environment) {
         // TODO Auto-generated method stub
         if (environment.containsKey(this)) {
-            return environment.get(this);
+            return Interner.intern(environment.get(this));
         }
         else return this;
     }
@@ -5,7 +5,10 @@ package expressivo;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
@@ -23,6 +26,17 @@ public class CommandsTest {
      * Partitions for Commands.simplify are the same as for Expression.simplify;
      * refer to ExpressionTest to view the partitions there. 
      * 
+     * The ParseCache overloads of differentiate and simplify must return the same results as the
+     * uncached ones, whether the expression was already cached or not.
+     * 
+     * Partitions for Commands.evaluateAll: no environments, a few environments, and many more environments
+     * than fit in one task; environments with extra variables; an environment missing a variable (illegal).
+     * Results are in the order of the environments and match BoundExpression.evaluate.
+     * 
+     * Partitions for Commands.derivativesAt: order 0, 1, and higher than the expression's degree (trailing
+     * zeros); differentiating by a variable not in the expression; negative order or a variable missing from
+     * the environment (illegal). Results match repeated differentiate followed by simplify.
+     * 
      * 
      */
     
@@ -173,4 +187,79 @@ public class CommandsTest {
         String result = "d*0+0*e+32*ZZ*1+(32*1+0*ZZ)*ZZ";
         assertEquals(Commands.differentiate(toDiff, var), result );
     }
+    
+    // Tests for the ParseCache overloads
+    
+    @Test
+    public void testCachedCommandsMatchUncached() {
+        ParseCache cache = new ParseCache(1000);
+        String expression = "  d*e+  32*ZZ*ZZ + abc  ";
+        for (int i = 0; i < 2; i ++) {
+            assertEquals(Commands.differentiate(expression, "ZZ"), Commands.differentiate(expression, "ZZ", cache));
+            assertEquals(Commands.simplify(expression, env), Commands.simplify(expression, env, cache));
+        }
+        assertEquals(1, cache.missCount());
+        assertEquals(3, cache.hitCount());
+    }
+    
+    // Tests for derivativesAt
+    
+    @Test
+    public void testDerivativesAtMatchRepeatedDifferentiation() {
+        String expression = "x*x*x*y + 2*x*(x + y) + 3";
+        Map<String, Double> environment = new HashMap<>();
+        environment.put("x", 2.0);
+        environment.put("y", 0.5);
+        for (String variable : Arrays.asList("x", "y", "z")) {
+            double[] derivatives = Commands.derivativesAt(expression, variable, environment, 5);
+            assertEquals(6, derivatives.length);
+            String derivative = expression;
+            for (int j = 0; j <= 5; j ++) {
+                assertEquals(variable + j, Double.parseDouble(Commands.simplify(derivative, environment)),
+                        derivatives[j], 1e-9);
+                derivative = Commands.differentiate(derivative, variable);
+            }
+        }
+        assertArrayEquals(new double[] {17}, Commands.derivativesAt(expression, "x", environment, 0), 1e-9);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testDerivativesAtNegativeOrder() {
+        Commands.derivativesAt("x", "x", env, -1);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testDerivativesAtMissingVariable() {
+        Commands.derivativesAt("x*abc", "abc", env, 2);
+    }
+    
+    // Tests for evaluateAll
+    
+    @Test
+    public void testEvaluateAllInOrder() {
+        String expression = "x*x + 3*y*(x + 1) + 2";
+        for (int count : new int[] {0, 3, 20000}) {
+            List<Map<String, Double>> environments = new ArrayList<>();
+            for (int i = 0; i < count; i ++) {
+                Map<String, Double> environment = new HashMap<>();
+                environment.put("x", i * 0.25);
+                environment.put("y", (double) (i % 7));
+                environment.put("unused", 1.0);
+                environments.add(environment);
+            }
+            double[] results = Commands.evaluateAll(expression, environments);
+            assertEquals(count, results.length);
+            for (int i = 0; i < count; i ++) {
+                double x = i * 0.25, y = i % 7;
+                assertEquals(x*x + 3*y*(x + 1) + 2, results[i], 1e-9);
+            }
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testEvaluateAllMissingVariable() {
+        Map<String, Double> environment = new HashMap<>();
+        environment.put("x", 1.0);
+        Commands.evaluateAll("x + y", Arrays.asList(environment));
+    }
 }
@@ -5,11 +5,19 @@ package expressivo;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -49,6 +57,13 @@ public class ExpressionTest {
      * 
      * hashCode(): same partitions as for toString()
      * 
+     * Representation: values kept as a scaled long (0, integers, short decimals, Long.MAX_VALUE) and
+     * ones that are not (more than 18 decimal places, beyond a long, large powers of ten), each given
+     * with and without trailing zeros; simplify folding numbers past a long, past 18 decimal places,
+     * and back into a long (multiplying by 0). Literals read straight from their digits match the
+     * BigDecimal constructor: leading and trailing zeros, a point first or last, zeros after the point
+     * followed by a digit, more than 18 decimal places, and integers past a long.
+     * 
      * Call both the constructor and producer method(from Expression) to create
      * NonNegativeNums to test above methods
      * 
@@ -79,6 +94,74 @@ public class ExpressionTest {
      * 
      * Call both constructor and producer method above to create Product objects to
      * test.
+     * 
+     * Interning: Expressions from the producer methods, parse, differentiate and simplify are the same
+     * object whenever they are equal, for each of Variable, NonNegativeNum, Sum and Product, including
+     * equal subtrees of different expressions. Expressions built with constructors are equal to, but not
+     * necessarily the same object as, interned ones.
+     * 
+     * sumOf(List), productOf(List): partition on the list having 1) no terms, 2) one term, 3) several
+     * terms, some of which are themselves sums (resp. products) to be flattened; and on a very long list
+     * of terms (built in linear time).
+     * 
+     * appendTo(Appendable): writes exactly toString() for each variant, for nested sums inside products,
+     * and for expressions whose text is longer than the cached-string limit.
+     * 
+     * variables(): partition on the expression being a number, a variable, or nested sums and products
+     * with repeated variables; iteration order is the order of first occurrence.
+     * 
+     * validate(): passes on parsed, differentiated (both product rules), simplified, shared and polynomial
+     * expressions; a Product built with a Product among its terms fails its check at construction.
+     * 
+     * bind(List<Variable>) and BoundExpression.evaluate(double[]): partition on the expression being
+     * 1) a number, 2) a variable, 3) sums and products nested in each other; on the bound variables being
+     * exactly the expression's, a superset in a different order, or missing one (illegal); duplicate bound
+     * variables (illegal); and values of the wrong length (illegal). Results match simplify's.
+     * 
+     * BoundExpression.evaluateBatch(double[][], double[]): partition on the number of rows being 0, less than
+     * one block, or several blocks with a partial last one; on operands being variables, constants or nested
+     * sums and products; and on the wrong number of columns or a column of the wrong length (illegal).
+     * Results match evaluate(double[]) row by row.
+     * 
+     * compile(List<Variable>) and CompiledExpression.evaluate(double[]): same partitions as bind, plus sums
+     * and products with 2, 3, 4 and more than 4 operands, with constant operands mixed among variable ones,
+     * and variable-free subexpressions. Results match BoundExpression.evaluate's.
+     * 
+     * gradientAt(Map<Variable, Double>) and BoundExpression.gradient: partition on the expression being a
+     * number, a variable, or nested sums and products with repeated variables; on a product term being
+     * zero at the point; on the point having extra variables (partial 0) or missing one (illegal).
+     * Partials match differentiate followed by simplify.
+     * 
+     * derivativeAt(Variable, Map) and exactDerivativeAt(Variable, Map): same partitions as gradientAt, plus
+     * differentiating by a variable not in the expression. The exact result equals differentiate followed
+     * by simplify; the double result matches it.
+     * 
+     * share(): partition on the expression having no repeated subtrees, repeated leaves only, and repeated
+     * sums and products built with constructors; the result equals the input and its repeated subtrees are
+     * one object. Expressions whose trees are exponentially larger than their shared form are shared,
+     * simplified, differentiated numerically and have their variables listed in time linear in the shared form.
+     * 
+     * compileUnivariate(Variable) and UnivariateExpression.evaluate(double): partition on the expression
+     * being a number, the variable, or a polynomial of degree below and at least ESTRIN_DEGREE, written
+     * with repeated factors and like terms; on a top coefficient that vanishes (x*0); and on the expression
+     * having another variable (illegal). Results match BoundExpression.evaluate's to rounding.
+     * 
+     * Variable summaries: simplify with an environment none of whose variables occur in a subtree
+     * returns it unchanged, unless it has a grouping of numbers to fold; differentiating by variables
+     * not in an expression gives the specified derivative, the same object for every such variable, and
+     * a derivative by a variable in it reuses that of its subtrees without the variable.
+     * 
+     * incremental(Map) and IncrementalEvaluator: after sequences of set and update changing one, several,
+     * none or unknown variables, and repeated variables, the value equals BoundExpression.evaluate's;
+     * an update recomputes only the nodes above changed leaves, and none when no value changes;
+     * environment missing a variable (illegal).
+     * 
+     * TieredExpression: evaluate before and after reaching the compilation threshold gives the same
+     * results; threshold not positive (illegal).
+     * 
+     * Deep nesting: parse, toString, equals, simplify and differentiate an expression whose sums and
+     * products alternate 100000 levels deep, and parse 100000 redundant parentheses, on a thread with a
+     * small stack.
      */
 
     /*
@@ -128,6 +211,12 @@ public class ExpressionTest {
      * 
      * We will test each case at least once. 
      * 
+     * 5) The same inputs parsed concurrently from several threads give the same Expressions as 
+     * parsing them sequentially (the compiled grammar is shared between threads).
+     * 
+     * 6) Every ParserKind gives equal Expressions with equal toString() for each valid input above, and
+     * every ParserKind rejects each invalid input above.
+     * 
      */
     
     /*
@@ -143,6 +232,16 @@ public class ExpressionTest {
      * 4) For product, test that the expression returned satisfies the spec. Test with 2 product terms in the
      * current expression, and test with more than 2 to see that they obey the spec.
      * 
+     * 5) Differentiator: a repeated subexpression, within one expression or across expressions differentiated
+     * with the same context, is differentiated once and gets the same derivative object; results equal
+     * Expression.differentiate's.
+     * 
+     * 6) Differentiator with ProductRule.PREFIX_SUFFIX: products of 2 terms (same as the spec), of more than 2
+     * terms (sum of prefix*derivative*suffix), where a term's derivative is itself a product; results
+     * round-trip through toString and parse, and have the same value as the spec's derivative. A product of
+     * 50000 terms, mixing variables, numbers and sums with and without variables, is differentiated in
+     * linear time, its summands reading the original terms and caching correct hash codes and summaries.
+     * 
      * 
      */
     
@@ -394,6 +493,222 @@ public class ExpressionTest {
     }
     
     
+    // Tests for Differentiator
+    
+    @Test
+    public void testDifferentiatorMemoizesRepeatedSubtrees() {
+        Variable x = new Variable("x");
+        Expression repeated = Expression.parse("(x*y + 3)*x");
+        Expression e = Expression.parse("(x*y + 3)*x + 2*(x*y + 3)*x*(x*y + 3)*x");
+        
+        Differentiator context = new Differentiator(x);
+        Expression derivative = context.differentiate(e);
+        int memoized = context.memoized();
+        assertEquals(e.differentiate(x), derivative);
+        Expression repeatedDerivative = context.differentiate(repeated);
+        assertEquals(memoized, context.memoized());
+        assertSame(repeatedDerivative, context.differentiate(Expression.parse("((x*y) + 3)*x")));
+        assertEquals(repeated.differentiate(x), repeatedDerivative);
+        
+        Expression other = Expression.parse("(x*y + 3)*x*(x*y + 3)");
+        assertEquals(other.differentiate(x), context.differentiate(other));
+        assertEquals(x, context.variable());
+    }
+    
+    @Test
+    public void testPrefixSuffixProductRule() {
+        Variable x = new Variable("x");
+        Differentiator linear = new Differentiator(x, Differentiator.ProductRule.PREFIX_SUFFIX);
+        assertEquals(Expression.parse("x*y").differentiate(x), linear.differentiate(Expression.parse("x*y")));
+        
+        Expression derivative = linear.differentiate(Expression.parse("x*y*(x*x + 2)*x"));
+        Expression expected = Expression.parse("1*y*(x*x+2)*x + x*0*(x*x+2)*x + x*y*(x*1+1*x+0)*x + x*y*(x*x+2)*1");
+        assertEquals(expected, derivative);
+        assertEquals(derivative, Expression.parse(derivative.toString()));
+        
+        Map<Variable, NonNegativeNum> at = new HashMap<>();
+        at.put(x, new NonNegativeNum(new BigDecimal(3)));
+        at.put(new Variable("y"), new NonNegativeNum(new BigDecimal("0.5")));
+        assertEquals(Expression.parse("x*y*(x*x + 2)*x").differentiate(x).simplify(at), derivative.simplify(at));
+    }
+    
+    @Test
+    public void testPrefixSuffixLongProduct() {
+        Variable x = new Variable("x");
+        StringBuilder input = new StringBuilder("x");
+        for (int i = 1; i < 3000; i ++) {
+            input.append("*x");
+        }
+        Expression derivative = new Differentiator(x, Differentiator.ProductRule.PREFIX_SUFFIX)
+                .differentiate(Expression.parse(input.toString()));
+        assertEquals(3000, derivative.getSummands().size());
+        assertEquals(3000, derivative.getSummands().get(1499).getProdTerms().size());
+        assertEquals(NonNegativeNum.one, derivative.getSummands().get(1499).getProdTerms().get(1499));
+    }
+    
+    @Test(timeout = 20000)
+    public void testPrefixSuffixLinearWork() {
+        // 50000 terms: quadratic hashing of the summands would take minutes
+        Variable x = new Variable("x");
+        List<Expression> pattern = Arrays.asList(x, Expression.make("y"), Expression.parse("x + y"),
+                Expression.parse("1 + 2"), Expression.make(new BigDecimal(3)));
+        List<Expression> terms = new ArrayList<>();
+        for (int i = 0; i < 50000; i ++) {
+            terms.add(pattern.get(i % pattern.size()));
+        }
+        Expression product = Expression.productOf(terms);
+        Expression derivative = new Differentiator(x, Differentiator.ProductRule.PREFIX_SUFFIX).differentiate(product);
+        List<Expression> summands = derivative.getSummands();
+        assertEquals(terms.size(), summands.size());
+        for (int i : new int[] {0, 1, 2, 3, 4, 25002, terms.size() - 1}) {
+            // each summand reads the original terms around its derivative, and its cached hash code,
+            // variable summary and foldable flag match its terms
+            List<Expression> factors = summands.get(i).getProdTerms();
+            if (i > 0) {
+                assertSame(terms.get(0), factors.get(0));
+            }
+            if (i < terms.size() - 1) {
+                assertSame(terms.get(terms.size() - 1), factors.get(factors.size() - 1));
+            }
+            assertEquals(new ArrayList<>(factors).hashCode(), summands.get(i).hashCode());
+            summands.get(i).validate();
+        }
+    }
+    
+    /*
+     * Runs body on a thread with a 256 KB stack, rethrowing whatever it throws.
+     */
+    private static void runWithSmallStack(Runnable body) throws Throwable {
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                body.run();
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        }, "small-stack", 1 << 18);
+        thread.start();
+        thread.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+    
+    @Test
+    public void testDeeplyNestedExpression() throws Throwable {
+        int depth = 100000;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < depth; i ++) {
+            text.append("a*(b+");
+        }
+        text.append('x');
+        for (int i = 0; i < depth; i ++) {
+            text.append(')');
+        }
+        Variable a = new Variable("a");
+        Variable b = new Variable("b");
+        Variable x = new Variable("x");
+        runWithSmallStack(() -> {
+            Expression parsed = Expression.parse(text.toString());
+            assertEquals(text.toString(), parsed.toString());
+            
+            Expression built = x;
+            for (int i = 0; i < depth; i ++) {
+                built = new Product(a, new Sum(b, built));
+            }
+            assertEquals(built, parsed);
+            assertEquals(parsed, built);
+            assertNotEquals(new Product(a, new Sum(b, built)), parsed);
+            
+            Map<Variable, NonNegativeNum> environment = new HashMap<>();
+            environment.put(a, new NonNegativeNum(new BigDecimal(1)));
+            environment.put(b, new NonNegativeNum(new BigDecimal(2)));
+            environment.put(x, new NonNegativeNum(new BigDecimal(3)));
+            assertEquals(Expression.make(new BigDecimal(3 + 2 * depth)), parsed.simplify(environment));
+            
+            // d(a*(b+y)) = a*(0+dy) + 0*(b+y)
+            Expression derivative = parsed.differentiate(x);
+            Expression inner = parsed.getProdTerms().get(1);
+            assertEquals(Arrays.asList(Expression.makeProduct(a, inner.differentiate(x)),
+                    Expression.makeProduct(NonNegativeNum.zero, inner)), derivative.getSummands());
+        });
+    }
+    
+    @Test
+    public void testDeeplyNestedEvaluate() throws Throwable {
+        int depth = 100000;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < depth; i ++) {
+            text.append("a*(b+");
+        }
+        text.append('x');
+        for (int i = 0; i < depth; i ++) {
+            text.append(')');
+        }
+        List<Variable> variables = Arrays.asList(new Variable("a"), new Variable("b"), new Variable("x"));
+        runWithSmallStack(() -> {
+            Expression e = Expression.parse(text.toString());
+            double[] point = {1, 2, 3};
+            
+            BoundExpression bound = e.bind(variables);
+            assertEquals(3 + 2 * depth, bound.evaluate(point), 0);
+            assertEquals(3 + 2 * depth, e.compile(variables).evaluate(point), 0);
+            
+            double[] gradient = new double[3];
+            assertEquals(3 + 2 * depth, bound.gradient(point, gradient), 0);
+            assertEquals(depth, gradient[1], 0);
+            assertEquals(1, gradient[2], 0);
+            
+            double[][] columns = { {1, 1, 1}, {2, 0, 1}, {3, 4, 0} };
+            double[] out = new double[3];
+            bound.evaluateBatch(columns, out);
+            assertArrayEquals(new double[] { 3 + 2 * depth, 4, depth }, out, 0);
+        });
+    }
+    
+    @Test
+    public void testDeeplyNestedParentheses() throws Throwable {
+        int depth = 100000;
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < depth; i ++) {
+            text.append('(');
+        }
+        text.append("x + 1");
+        for (int i = 0; i < depth; i ++) {
+            text.append(')');
+        }
+        runWithSmallStack(() -> assertEquals(Expression.parse("x+1"), Expression.parse(text.toString())));
+    }
+    
+    @Test
+    public void testDifferentiateLongSum() {
+        int n = 200000;
+        List<Expression> terms = new ArrayList<>();
+        for (int i = 0; i < n; i ++) {
+            terms.add(i % 2 == 0 ? Expression.make("x") : Expression.parse("y*x"));
+        }
+        Expression derivative = Expression.sumOf(terms).differentiate(new Variable("x"));
+        List<Expression> summands = derivative.getSummands();
+        // each y*x contributes the two summands y*1 + 0*x
+        assertEquals(n / 2 * 3, summands.size());
+        assertEquals(NonNegativeNum.one, summands.get(0));
+        assertEquals(Expression.parse("y*1"), summands.get(1));
+        assertEquals(Expression.parse("0*x"), summands.get(summands.size() - 1));
+    }
+    
+    @Test
+    public void testRepeatedDifferentiation() {
+        Variable x = new Variable("x");
+        Expression e = Expression.parse("x*x*x*x*x*x*x*x");
+        for (int i = 0; i < 4; i ++) {
+            e = e.differentiate(x);
+        }
+        Map<Variable, NonNegativeNum> at = new HashMap<>();
+        at.put(x, new NonNegativeNum(new BigDecimal(2)));
+        // d^4/dx^4 x^8 = 8*7*6*5 x^4
+        assertEquals(new NonNegativeNum(new BigDecimal(8*7*6*5*16)), e.simplify(at));
+    }
+    
     // Tests for Expression.parse
     /*
     Schema: 
@@ -500,6 +815,64 @@ public class ExpressionTest {
         
     }
     
+    // Test parsing from several threads at once
+    
+    @Test
+    public void testParseConcurrently() throws Exception {
+        List<String> inputs = Arrays.asList("a + b * (c + 2.50)", "((x))*y*z + 3", "  12 * (ab + cd + 32)");
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Expression>> results = new ArrayList<>();
+            for (int i = 0; i < 40; i ++) {
+                String input = inputs.get(i % inputs.size());
+                results.add(pool.submit(() -> Expression.parse(input)));
+            }
+            for (int i = 0; i < results.size(); i ++) {
+                assertEquals(Expression.parse(inputs.get(i % inputs.size())), results.get(i).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    // Test that the lib6005 and recursive-descent parsers agree
+    
+    static List<String> validInputs = Arrays.asList("abcd", "123.0001", "  5.", " .25 ", "     (  ((   abcd   )))   ",
+            "(  (  ( abcde )  )   +  ((( 123)))   ) ", "abcd + 123+abcde", "123  + (( abcde +  abcde ) +123)",
+            "abcde + 123 + abcd*123", "( ( 123)  * ((  abcd ))   )", "abcde * (  (( abcd ))  *  123 )",
+            " ( abcde  + 123 + abcd * 123 ) *123*abcd", "abcd*123   *  ((  123*abcd  )    ) ",
+            "g +  a + y +  a + ((( 45 + 32*a )) + b + c )", " (( z*234*abc )  + (  x*x + y*y  )  )  ",
+            "  d*e+  32*ZZ*ZZ   ", "  0 +  1 + 0 +  1 + 0 + ((( 32*1 + 0*a ))) + 0 + 0  ", "x*(y+z)*(w*(u+v))");
+    
+    static List<String> invalidInputs = Arrays.asList("", "   ", " ((    . ) )", " *   ", " (  +    )", " ((()))",
+            " a * b * c * d * e * f * g * -5 ", "        a        9.000000", "     (  9 * 34234 +  ( 23234 * (( a + b   ) ) )   ",
+            "a b", "1..2", "3 4", "x +", "(x))", "a\tb", "2 * \u00e9");
+    
+    @Test
+    public void testParsersAgreeOnValidInputs() {
+        for (String input : validInputs) {
+            Expression grammar = Expression.parse(input, ParserKind.LIB6005);
+            Expression descent = Expression.parse(input, ParserKind.RECURSIVE_DESCENT);
+            assertEquals(input, grammar, descent);
+            assertEquals(input, grammar.toString(), descent.toString());
+            assertEquals(input, grammar.hashCode(), descent.hashCode());
+        }
+    }
+    
+    @Test
+    public void testParsersAgreeOnInvalidInputs() {
+        for (ParserKind kind : ParserKind.values()) {
+            for (String input : invalidInputs) {
+                try {
+                    Expression.parse(input, kind);
+                    fail(kind + " accepted \"" + input + "\"");
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+        }
+    }
+    
     // Test invalid / illegal input string 
     
     @Test(expected = IllegalArgumentException.class)
@@ -547,6 +920,537 @@ public class ExpressionTest {
         Expression.parse("     (  9 * 34234 +  ( 23234 * (( a + b   ) ) )   "); 
     }
 
+    // Tests for interning
+    
+    @Test
+    public void testInternedEqualExpressionsAreSame() {
+        assertSame(Expression.make("xy"), Expression.make("xy"));
+        assertSame(Expression.make(new BigDecimal("2.50")), Expression.make(new BigDecimal("2.5")));
+        assertSame(Expression.parse("a + b*c"), Expression.parse("((a)) + (b * c)"));
+        assertSame(Expression.parse("(a+b)*c", ParserKind.LIB6005), Expression.parse("(a+b)*c"));
+        
+        Expression sum = Expression.parse("x*y + x*y");
+        assertSame(sum.getSummands().get(0), sum.getSummands().get(1));
+        assertSame(Expression.parse("x*y"), sum.getSummands().get(0));
+    }
+    
+    @Test
+    public void testInternedDerivativesShareSubtrees() {
+        Expression derivative = Expression.parse("x*x*x").differentiate(new Variable("x"));
+        assertSame(Expression.parse("x*x*1 + (x*1 + 1*x)*x"), derivative);
+        assertSame(NonNegativeNum.one, derivative.getSummands().get(0).getProdTerms().get(2));
+        
+        Expression simple = Expression.parse("x*(2+3) + y").simplify(env);
+        assertSame(Expression.parse("x*5 + y"), simple);
+    }
+    
+    @Test
+    public void testConstructedEqualsInterned() {
+        Sum constructed = new Sum(new Variable("a"), new Product(new Variable("b"), new NonNegativeNum(num10)));
+        Expression interned = Expression.parse("a + b*123");
+        assertEquals(constructed, interned);
+        assertEquals(interned, constructed);
+        assertEquals(constructed.hashCode(), interned.hashCode());
+    }
+    
+    // Tests for sumOf and productOf
+    
+    @Test
+    public void testSumOfFlattensInOrder() {
+        Expression sum = Expression.sumOf(Arrays.asList(var10, sumVarNum, productNumVar));
+        assertEquals(new Sum(new Sum(var10, sumVarNum), productNumVar), sum);
+        assertEquals(Arrays.asList(var10, var2, number12, productNumVar), sum.getSummands());
+        assertSame(var11, Expression.sumOf(Arrays.asList(var11)));
+    }
+    
+    @Test
+    public void testProductOfFlattensInOrder() {
+        Expression product = Expression.productOf(Arrays.asList(sumVarNum, productNumVarRev, var2));
+        assertEquals(new Product(new Product(sumVarNum, productNumVarRev), var2), product);
+        assertEquals(Arrays.asList(sumVarNum, number10, var10, var2), product.getProdTerms());
+        assertSame(var2, Expression.productOf(Arrays.asList(var2)));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testSumOfNoTerms() {
+        Expression.sumOf(new ArrayList<>());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testProductOfNoTerms() {
+        Expression.productOf(new ArrayList<>());
+    }
+    
+    @Test
+    public void testLongSumAndProduct() {
+        int n = 50000;
+        List<Expression> terms = new ArrayList<>();
+        StringBuilder input = new StringBuilder("x");
+        terms.add(Expression.make("x"));
+        for (int i = 1; i < n; i ++) {
+            terms.add(Expression.make(new BigDecimal(i)));
+            input.append("*").append(i);
+        }
+        Expression product = Expression.productOf(terms);
+        assertEquals(n, product.getProdTerms().size());
+        assertSame(product, Expression.parse(input.toString()));
+        
+        Expression sum = Expression.sumOf(Arrays.asList(product, product, var2));
+        assertEquals(3, sum.getSummands().size());
+    }
+    
+    // Tests for appendTo
+    
+    @Test
+    public void testAppendToMatchesToString() throws IOException {
+        List<Expression> expressions = Arrays.asList(var10, number2, sumOfProduct, productOfSum,
+                Expression.parse("x*(y+z*(u+v))+w"));
+        for (Expression e : expressions) {
+            StringWriter out = new StringWriter();
+            e.appendTo(out);
+            assertEquals(e.toString(), out.toString());
+        }
+    }
+    
+    @Test
+    public void testLongToString() throws IOException {
+        StringBuilder input = new StringBuilder("(a+b)");
+        for (int i = 0; i < 2000; i ++) {
+            input.append("*(a+b)");
+        }
+        Expression product = Expression.parse(input.toString());
+        String text = product.toString();
+        assertEquals(input.toString(), text);
+        assertEquals(text, product.toString());
+        
+        StringBuilder out = new StringBuilder("> ");
+        product.appendTo(out);
+        assertEquals("> " + text, out.toString());
+    }
+    
+    // Tests for variables()
+    
+    @Test
+    public void testVariables() {
+        assertEquals(new ArrayList<>(), new ArrayList<>(number2.variables()));
+        assertEquals(Arrays.asList(var10), new ArrayList<>(var10.variables()));
+        Expression e = Expression.parse("y*(x + 2*y) + z*x + 3");
+        assertEquals(Arrays.asList(new Variable("y"), new Variable("x"), new Variable("z")), new ArrayList<>(e.variables()));
+    }
+    
+    // Tests for validate()
+    
+    @Test
+    public void testValidate() {
+        Expression e = Expression.parse("y*(x + 2*y)*x*x + z*x + (3 + 4)*x");
+        Variable x = new Variable("x");
+        e.validate();
+        number2.validate();
+        var10.validate();
+        e.differentiate(x).validate();
+        new Differentiator(x, Differentiator.ProductRule.PREFIX_SUFFIX).differentiate(e).validate();
+        e.simplify(new HashMap<>()).validate();
+        e.share().expression().validate();
+        e.toPolynomial().toExpression().validate();
+    }
+    
+    @Test(expected = AssertionError.class)
+    public void testValidateNestedProduct() {
+        Expression product = Expression.parse("x*y");
+        new Product(Arrays.asList(product, Expression.make("z")));
+    }
+    
+    // Tests for bind and BoundExpression
+    
+    @Test
+    public void testBindEvaluateMatchesSimplify() {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Expression e = Expression.parse("x*(y + 2.5)*x + 3*(y + x*y) + 7");
+        BoundExpression bound = e.bind(Arrays.asList(y, var10, x));
+        
+        double[][] points = { {0, 0, 0}, {1.5, 9, 2}, {4, 0, 0.25} };
+        for (double[] point : points) {
+            Map<Variable, NonNegativeNum> environment = new HashMap<>();
+            environment.put(y, new NonNegativeNum(new BigDecimal(point[0])));
+            environment.put(x, new NonNegativeNum(new BigDecimal(point[2])));
+            double expected = ((NonNegativeNum) e.simplify(environment)).numericValue().doubleValue();
+            assertEquals(expected, bound.evaluate(point), 1e-9);
+        }
+        assertEquals(Arrays.asList(y, var10, x), bound.variables());
+    }
+    
+    @Test
+    public void testBindPrimitives() {
+        assertEquals(123.0001, number2.bind(Arrays.asList()).evaluate(new double[0]), 1e-12);
+        assertEquals(42, var10.bind(Arrays.asList(var10)).evaluate(new double[] {42}), 0);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testBindMissingVariable() {
+        Expression.parse("x + y").bind(Arrays.asList(new Variable("x")));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testBindDuplicateVariable() {
+        Expression.parse("x").bind(Arrays.asList(new Variable("x"), new Variable("x")));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testEvaluateWrongNumberOfValues() {
+        Expression.parse("x + y").bind(Arrays.asList(new Variable("x"), new Variable("y"))).evaluate(new double[1]);
+    }
+    
+    @Test
+    public void testEvaluateBatchMatchesEvaluate() {
+        List<Variable> variables = Arrays.asList(new Variable("x"), new Variable("y"));
+        BoundExpression bound = Expression.parse("x*(y + 2.5)*x + 3*(y + x*y*(x + 1)) + 7 + y").bind(variables);
+        for (int rows : new int[] {0, 3, 1000}) {
+            double[][] columns = new double[2][rows];
+            for (int row = 0; row < rows; row ++) {
+                columns[0][row] = row * 0.5;
+                columns[1][row] = 1000 - row;
+            }
+            double[] out = new double[rows];
+            bound.evaluateBatch(columns, out);
+            for (int row = 0; row < rows; row ++) {
+                assertEquals(bound.evaluate(new double[] {columns[0][row], columns[1][row]}), out[row], 1e-9);
+            }
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testEvaluateBatchColumnTooShort() {
+        BoundExpression bound = Expression.parse("x + y").bind(Arrays.asList(new Variable("x"), new Variable("y")));
+        bound.evaluateBatch(new double[][] { new double[4], new double[3] }, new double[4]);
+    }
+    
+    // Tests for compile and CompiledExpression
+    
+    @Test
+    public void testCompileMatchesBind() {
+        List<Variable> variables = Arrays.asList(new Variable("x"), new Variable("y"), new Variable("z"));
+        List<String> inputs = Arrays.asList("x + y", "x*y*z", "2*x + 3*y*4 + (1 + 2)*z + 5", 
+                "x*y*z*x*y + x + y + z + 2 + x*(y + 1.5)*(3 + 4)", "(x + 1)*(y + 2)*(z + 3)*(x + y)*(1 + 1)", "7 + 2*3");
+        double[][] points = { {0, 0, 0}, {1, 2, 3}, {0.5, 4, 1.25} };
+        for (String input : inputs) {
+            Expression e = Expression.parse(input);
+            BoundExpression bound = e.bind(variables);
+            CompiledExpression compiled = e.compile(variables);
+            for (double[] point : points) {
+                assertEquals(input, bound.evaluate(point), compiled.evaluate(point), 0);
+            }
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompileMissingVariable() {
+        Expression.parse("2*(x + y)").compile(Arrays.asList(new Variable("y")));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompiledWrongNumberOfValues() {
+        Expression.parse("x").compile(Arrays.asList(new Variable("x"))).evaluate(new double[2]);
+    }
+    
+    // Tests for gradientAt
+    
+    /*
+     * Returns the partial derivative of e with respect to var at point, computed symbolically.
+     */
+    private static double symbolicPartial(Expression e, Variable var, Map<Variable, Double> point) {
+        Map<Variable, NonNegativeNum> environment = new HashMap<>();
+        for (Map.Entry<Variable, Double> entry : point.entrySet()) {
+            environment.put(entry.getKey(), new NonNegativeNum(new BigDecimal(entry.getValue())));
+        }
+        return ((NonNegativeNum) e.differentiate(var).simplify(environment)).numericValue().doubleValue();
+    }
+    
+    @Test
+    public void testGradientMatchesDifferentiate() {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Variable z = new Variable("z");
+        Map<Variable, Double> point = new LinkedHashMap<>();
+        point.put(x, 1.5);
+        point.put(y, 0.0);
+        point.put(z, 2.0);
+        point.put(new Variable("w"), 7.0);
+        for (String input : Arrays.asList("3", "x", "x*y*z + x*x*(y + 2*z)", "(x+y)*(x+z)*z*x + 4*y", "x*y*z*x")) {
+            Expression e = Expression.parse(input);
+            Map<Variable, Double> gradient = e.gradientAt(point);
+            assertEquals(new ArrayList<>(point.keySet()), new ArrayList<>(gradient.keySet()));
+            for (Variable var : point.keySet()) {
+                assertEquals(input + " d" + var, symbolicPartial(e, var, point), gradient.get(var), 1e-9);
+            }
+        }
+    }
+    
+    @Test
+    public void testBoundGradientReturnsValue() {
+        Expression e = Expression.parse("x*y + 2*x");
+        double[] gradient = new double[2];
+        double value = e.bind(Arrays.asList(new Variable("y"), new Variable("x"))).gradient(new double[] {3, 5}, gradient);
+        assertEquals(25, value, 0);
+        assertEquals(5, gradient[0], 0);
+        assertEquals(5, gradient[1], 0);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testGradientMissingVariable() {
+        Map<Variable, Double> point = new HashMap<>();
+        point.put(new Variable("x"), 1.0);
+        Expression.parse("x*y").gradientAt(point);
+    }
+    
+    @Test
+    public void testDerivativeAtMatchesDifferentiate() {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Map<Variable, Double> point = new HashMap<>();
+        point.put(x, 1.5);
+        point.put(y, 0.0);
+        Map<Variable, NonNegativeNum> environment = new HashMap<>();
+        environment.put(x, new NonNegativeNum(new BigDecimal("1.5")));
+        environment.put(y, new NonNegativeNum(new BigDecimal("0")));
+        for (String input : Arrays.asList("3", "y", "x*y*x + x*x*(y + 2.25*x)", "(x+y)*(x+3)*x*x + 4*y")) {
+            Expression e = Expression.parse(input);
+            for (Variable var : Arrays.asList(x, y, new Variable("z"))) {
+                NonNegativeNum exact = e.exactDerivativeAt(var, environment);
+                assertEquals(input + " d" + var, e.differentiate(var).simplify(environment), exact);
+                assertEquals(exact.numericValue().doubleValue(), e.derivativeAt(var, point), 1e-9);
+            }
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testDerivativeAtMissingVariable() {
+        Map<Variable, Double> point = new HashMap<>();
+        point.put(new Variable("x"), 1.0);
+        Expression.parse("x*y").derivativeAt(new Variable("x"), point);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testExactDerivativeAtMissingVariable() {
+        Expression.parse("x").exactDerivativeAt(new Variable("x"), new HashMap<>());
+    }
+    
+    // Tests for share
+    
+    @Test
+    public void testShareRepeatedSubtrees() {
+        Variable x = new Variable("x");
+        Variable y = new Variable("y");
+        Expression original = new Sum(new Product(x, new Variable("y")), new Product(new Variable("x"), y));
+        SharedExpression shared = original.share();
+        assertEquals(original, shared.expression());
+        assertSame(shared.expression().getSummands().get(0), shared.expression().getSummands().get(1));
+        assertEquals(7, shared.originalNodes());
+        assertEquals(4, shared.uniqueNodes());
+        assertEquals(3, shared.nodesSaved());
+    }
+    
+    @Test
+    public void testShareNothingRepeated() {
+        SharedExpression shared = Expression.parse("x*y + 3").share();
+        assertEquals(Expression.parse("x*y + 3"), shared.expression());
+        assertEquals(5, shared.originalNodes());
+        assertEquals(0, shared.nodesSaved());
+    }
+    
+    @Test
+    public void testSharedTraversalsVisitNodesOnce() {
+        // e(k+1) = (e(k) + 1)*(e(k) + 1): the tree doubles at every level, the shared form grows by 2 nodes
+        int depth = 40;
+        Variable x = new Variable("x");
+        Expression e = x;
+        for (int i = 0; i < depth; i ++) {
+            Sum s = new Sum(e, new NonNegativeNum(new BigDecimal(1)));
+            e = new Product(s, s);
+        }
+        SharedExpression shared = e.share();
+        assertEquals(2 * depth + 2, shared.uniqueNodes());
+        assertTrue(shared.originalNodes() > 1L << depth);
+        assertSame(shared.expression(), Expression.productOf(shared.expression().getProdTerms()));
+        
+        assertEquals(e, e.simplify(new HashMap<>()));
+        assertEquals(new LinkedHashSet<>(Arrays.asList(x)), e.variables());
+        Map<Variable, Double> point = new HashMap<>();
+        point.put(x, 0.0);
+        assertTrue(e.derivativeAt(x, point) > 0);
+    }
+    
+    // Tests for compileUnivariate
+    
+    @Test
+    public void testUnivariateMatchesBound() {
+        Variable x = new Variable("x");
+        StringBuilder high = new StringBuilder("3");
+        StringBuilder power = new StringBuilder("x");
+        for (int i = 1; i <= UnivariateExpression.ESTRIN_DEGREE + 5; i ++) {
+            high.append(" + ").append(i % 3).append(".5*").append(power);
+            power.append("*x");
+        }
+        List<String> inputs = Arrays.asList("2.5", "x", "x*x*x + 2*x*(x + 1) + 3*x*x + 1", "x*x*0 + x", high.toString());
+        int[] degrees = {0, 1, 3, 1, UnivariateExpression.ESTRIN_DEGREE + 5};
+        for (int k = 0; k < inputs.size(); k ++) {
+            Expression e = Expression.parse(inputs.get(k));
+            UnivariateExpression univariate = e.compileUnivariate(x);
+            assertEquals(inputs.get(k), degrees[k], univariate.degree());
+            BoundExpression bound = e.bind(Arrays.asList(x));
+            for (double value : new double[] {0, 0.5, 1, 1.25, 3}) {
+                double expected = bound.evaluate(new double[] {value});
+                assertEquals(inputs.get(k), expected, univariate.evaluate(value), 1e-12 * Math.max(1, expected));
+            }
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnivariateOtherVariable() {
+        Expression.parse("x*y").compileUnivariate(new Variable("x"));
+    }
+    
+    // Tests for variable summaries
+    
+    @Test
+    public void testSimplifySkipsUnaffectedSubtrees() {
+        Expression e = Expression.parse("(x*y + 2)*(z + w) + (1 + 2)*x");
+        Map<Variable, NonNegativeNum> environment = new HashMap<>();
+        environment.put(new Variable("q"), new NonNegativeNum(new BigDecimal("5")));
+        assertEquals(Expression.parse("(x*y + 2)*(z + w) + 3*x"), e.simplify(environment));
+        
+        Expression unfoldable = Expression.parse("(x*y + 2)*(z + w)");
+        assertSame(Interner.intern(unfoldable), unfoldable.simplify(environment));
+        
+        environment.put(new Variable("z"), new NonNegativeNum(new BigDecimal("3")));
+        assertEquals(Expression.parse("(x*y + 2)*(3 + w) + 3*x"), e.simplify(environment));
+    }
+    
+    @Test
+    public void testDifferentiateReusesConstantDerivative() {
+        Expression e = Expression.parse("x*y*z + w*w");
+        Expression byA = e.differentiate(new Variable("a"));
+        assertEquals(Expression.parse("x*y*0 + (x*0 + 0*y)*z + w*0 + 0*w"), byA);
+        assertSame(byA, e.differentiate(new Variable("b")));
+        assertEquals(Expression.parse("x*y*0 + (x*0 + 1*y)*z + w*0 + 0*w"), e.differentiate(new Variable("x")));
+        assertEquals(Expression.parse("x*y*0 + (x*0 + 0*y)*z + w*1 + 1*w"), e.differentiate(new Variable("w")));
+    }
+    
+    // Tests for incremental
+    
+    @Test
+    public void testIncrementalMatchesBound() {
+        List<Variable> variables = Arrays.asList(new Variable("x"), new Variable("y"), new Variable("z"));
+        Expression e = Expression.parse("x*x*y + 3*(x + y)*(z + 1.5) + x*z*z + 2");
+        BoundExpression bound = e.bind(variables);
+        Map<Variable, Double> environment = new HashMap<>();
+        environment.put(variables.get(0), 1.0);
+        environment.put(variables.get(1), 2.0);
+        environment.put(variables.get(2), 3.0);
+        environment.put(new Variable("w"), 4.0);
+        IncrementalEvaluator incremental = e.incremental(environment);
+        double[] point = {1, 2, 3};
+        assertEquals(bound.evaluate(point), incremental.value(), 0);
+        
+        point[0] = 0.5;
+        assertEquals(bound.evaluate(point), incremental.set(variables.get(0), 0.5), 0);
+        point[2] = 7.25;
+        assertEquals(bound.evaluate(point), incremental.set(variables.get(2), 7.25), 0);
+        assertEquals(bound.evaluate(point), incremental.set(new Variable("w"), 5), 0);
+        
+        Map<Variable, Double> changes = new HashMap<>();
+        changes.put(variables.get(0), 3.5);
+        changes.put(variables.get(1), 0.0);
+        point[0] = 3.5;
+        point[1] = 0;
+        assertEquals(bound.evaluate(point), incremental.update(changes), 0);
+        assertEquals(bound.evaluate(point), incremental.value(), 0);
+    }
+    
+    @Test
+    public void testIncrementalRecomputesDirtyPath() {
+        // sum of a_i*x_i for 100 two-letter suffixes i
+        StringBuilder input = new StringBuilder("0");
+        Map<Variable, Double> environment = new HashMap<>();
+        List<String> suffixes = new ArrayList<>();
+        for (int i = 0; i < 100; i ++) {
+            String suffix = "" + (char) ('a' + i / 26) + (char) ('a' + i % 26);
+            suffixes.add(suffix);
+            input.append(" + a").append(suffix).append("*x").append(suffix);
+            environment.put(new Variable("a" + suffix), 1.0);
+            environment.put(new Variable("x" + suffix), 1.0);
+        }
+        IncrementalEvaluator incremental = Expression.parse(input.toString()).incremental(environment);
+        assertEquals(100, incremental.value(), 0);
+        
+        assertEquals(101, incremental.set(new Variable("x" + suffixes.get(7)), 2), 0);
+        assertEquals(2, incremental.recomputed());
+        assertEquals(101, incremental.set(new Variable("x" + suffixes.get(7)), 2), 0);
+        assertEquals(0, incremental.recomputed());
+        
+        Map<Variable, Double> changes = new HashMap<>();
+        changes.put(new Variable("a" + suffixes.get(7)), 3.0);
+        changes.put(new Variable("x" + suffixes.get(50)), 0.0);
+        assertEquals(104, incremental.update(changes), 0);
+        assertEquals(3, incremental.recomputed());
+    }
+    
+    @Test
+    public void testIncrementalWideSumDoesLogarithmicWork() {
+        // x*y + 1 + 1 + ... with 100000 ones: the root has 100001 children
+        StringBuilder input = new StringBuilder("x*y");
+        for (int i = 0; i < 100000; i ++) {
+            input.append(" + 1");
+        }
+        Map<Variable, Double> environment = new HashMap<>();
+        environment.put(new Variable("x"), 1.0);
+        environment.put(new Variable("y"), 1.0);
+        IncrementalEvaluator incremental = Expression.parse(input.toString()).incremental(environment);
+        assertEquals(100001, incremental.value(), 0);
+        
+        for (int i = 2; i < 1000; i ++) {
+            assertEquals(100000 + i, incremental.set(new Variable("x"), i), 0);
+            assertEquals(2, incremental.recomputed());
+            // one multiplication, then one addition per level of the root's segment tree
+            assertTrue("combined " + incremental.combined(), incremental.combined() <= 1 + 18);
+        }
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testIncrementalMissingVariable() {
+        Map<Variable, Double> environment = new HashMap<>();
+        environment.put(new Variable("x"), 1.0);
+        Expression.parse("x*y + 1").incremental(environment);
+    }
+    
+    // Tests for TieredExpression
+    
+    @Test
+    public void testTieredCompilesWhenHot() throws InterruptedException {
+        List<Variable> variables = Arrays.asList(new Variable("x"), new Variable("y"));
+        // at x = 369.26 this is 480.33799999999997, but 480.338 if its constants are regrouped
+        Expression e = Expression.parse("x*0.1*3 + 0.1 + x + 0.2 + (1 + 2)*0.1*y*0");
+        TieredExpression tiered = new TieredExpression(e, variables, 5);
+        BoundExpression bound = e.bind(variables);
+        double[] point = {369.26, 2};
+        double[] other = {1.5, 0.3};
+        
+        for (int i = 0; i < 5; i ++) {
+            assertEquals(bound.evaluate(point), tiered.evaluate(point), 0);
+        }
+        for (int i = 0; i < 500 && !tiered.isCompiled(); i ++) {
+            Thread.sleep(10);
+        }
+        assertTrue(tiered.isCompiled());
+        assertEquals(bound.evaluate(point), tiered.evaluate(point), 0);
+        assertEquals(bound.evaluate(other), tiered.evaluate(other), 0);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testTieredThresholdNotPositive() {
+        new TieredExpression(var10, Arrays.asList(var10), 0);
+    }
+    
     // Tests for Sum Implementation
 
     @Test
@@ -698,6 +1602,48 @@ public class ExpressionTest {
         assertFalse(number12.equals(number2));
     }
 
+    @Test
+    public void testNumRepresentations() {
+        for (String text : Arrays.asList("0", "0.000", "100", "12.500", "0.000000000000000001",
+                "0.0000000000000000001", "9223372036854775807", "9223372036854775808",
+                "123456789012345678901234.5", "1E+25")) {
+            BigDecimal value = new BigDecimal(text);
+            NonNegativeNum num = new NonNegativeNum(value);
+            NonNegativeNum padded = new NonNegativeNum(value.setScale(value.scale() + 3));
+            assertEquals(text, value.stripTrailingZeros().toPlainString(), num.toString());
+            assertEquals(text, num, padded);
+            assertEquals(text, num.hashCode(), padded.hashCode());
+            assertEquals(text, value.doubleValue(), num.doubleValue(), 0);
+            assertEquals(text, 0, value.compareTo(num.numericValue()));
+        }
+        assertNotEquals(new NonNegativeNum(new BigDecimal("9223372036854775807")),
+                new NonNegativeNum(new BigDecimal("9223372036854775808")));
+    }
+    
+    @Test
+    public void testNumParse() {
+        for (String text : Arrays.asList("0", "007", "12.", ".5", "1.500", "0.0", "10.01", "0.000000000000000001",
+                "0.0000000000000000001", "1.0000000000000000000", "9223372036854775807", "9223372036854775808",
+                "123456789012345678901234.5")) {
+            NonNegativeNum expected = new NonNegativeNum(new BigDecimal(text));
+            NonNegativeNum parsed = NonNegativeNum.parse("(" + text + ")", 1, text.length() + 1);
+            assertEquals(text, expected, parsed);
+            assertEquals(text, expected.toString(), parsed.toString());
+            assertEquals(text, expected, Expression.parse(text));
+            assertEquals(text, expected, Expression.parse(text, ParserKind.RECURSIVE_DESCENT));
+        }
+    }
+    
+    @Test
+    public void testSimplifyFoldsBeyondLong() {
+        Map<Variable, NonNegativeNum> environment = new HashMap<>();
+        assertEquals("9223372036854775808", Expression.parse("9223372036854775807 + 1").simplify(environment).toString());
+        assertEquals("0.00000000000000000001", Expression.parse("0.0000000001*0.0000000001").simplify(environment).toString());
+        assertEquals(zero, Expression.parse("99999999999999999999*99999999999999999999*0").simplify(environment));
+        assertEquals("0.3", Expression.parse("0.1 + 0.2").simplify(environment).toString());
+        assertSame(Expression.make(new BigDecimal("6")), Expression.parse("1.5*4 + x*0").simplify(environment).getSummands().get(0));
+    }
+
     // Tests for Variable Implementation
 
     @Test
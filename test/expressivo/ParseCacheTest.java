@@ -0,0 +1,105 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for ParseCache.
+ */
+public class ParseCacheTest {
+
+    // Testing strategy
+    /*
+     * parse(String): partition on 1) input not cached (miss), 2) input cached (hit),
+     * 3) caching the input pushes the total weight over capacity (eviction of the least recently used
+     * entries), 4) the parsed expression alone is heavier than the capacity (not cached),
+     * 5) invalid input, 6) the input text alone is heavier than the capacity, though its AST is small.
+     * Entries weigh their AST's node count plus their input's length.
+     *
+     * Counters: hitCount(), missCount(), evictionCount(), size() and weight() are checked after each of
+     * the above.
+     *
+     * Constructor: capacity positive, or not positive.
+     */
+
+    @Test(expected = AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    @Test
+    public void testMissThenHit() {
+        ParseCache cache = new ParseCache(100);
+        Expression first = cache.parse("x * (y + 2)");
+        Expression second = cache.parse("x * (y + 2)");
+
+        assertEquals(Expression.parse("x * (y + 2)"), first);
+        assertSame(first, second);
+        assertEquals(1, cache.missCount());
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.size());
+        // Product(x, Sum(y, 2)) has 5 nodes, and the input 11 chars
+        assertEquals(16, cache.weight());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        ParseCache cache = new ParseCache(14);
+        cache.parse("a+b"); // weight 3 + 3
+        cache.parse("c*d"); // weight 3 + 3
+        cache.parse("a+b"); // hit, now c*d is least recently used
+        cache.parse("e");   // weight 1 + 1, total 14
+        assertEquals(0, cache.evictionCount());
+
+        cache.parse("f");   // total 16 > 14, evicts c*d
+        assertEquals(1, cache.evictionCount());
+        assertEquals(10, cache.weight());
+
+        cache.parse("a+b");
+        assertEquals(2, cache.hitCount());
+        cache.parse("c*d");
+        assertEquals(5, cache.missCount());
+    }
+
+    @Test
+    public void testHeavierThanCapacityNotCached() {
+        ParseCache cache = new ParseCache(2);
+        Expression parsed = cache.parse("a + b + c");
+        assertEquals(Expression.parse("a+b+c"), parsed);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+        assertEquals(0, cache.evictionCount());
+    }
+
+    @Test
+    public void testLongInputNotCached() {
+        ParseCache cache = new ParseCache(8);
+        // one node, but 9 chars
+        Expression parsed = cache.parse("((((x))))");
+        assertEquals(Expression.make("x"), parsed);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+
+        cache.parse("(x)");
+        assertEquals(4, cache.weight());
+    }
+
+    @Test
+    public void testInvalidInputNotCached() {
+        ParseCache cache = new ParseCache(10);
+        try {
+            cache.parse("a + ");
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.missCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveCapacity() {
+        new ParseCache(0);
+    }
+}
@@ -0,0 +1,141 @@
+package expressivo;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for Polynomial.
+ */
+public class PolynomialTest {
+
+    // Testing strategy
+    /*
+     * of(Expression) and toExpression(): partition on the expression being 1) a number, including 0,
+     * 2) a variable, 3) sums and products with like terms to collect, 4) terms that vanish (multiplied
+     * by 0), 5) more variables than fit in one packed word; and a monomial of too high a degree (illegal).
+     * Equal polynomials come from mathematically equal expressions, whatever their structure.
+     *
+     * add(Polynomial), multiply(Polynomial): partition on the operands having the same or different
+     * variables, one operand being zero or constant, and products whose terms collect.
+     *
+     * differentiate(Variable): by a variable of the polynomial, by one not in it, and by one that
+     * vanishes from the result. Matches the polynomial of Expression.differentiate.
+     *
+     * substitute(Map), evaluate(Map): environment giving values to all, some or none of the variables,
+     * and to other variables; evaluate with a variable missing (illegal). Matches Expression.simplify.
+     */
+
+    @Test(expected = AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+
+    private static Polynomial poly(String input) {
+        return Expression.parse(input).toPolynomial();
+    }
+
+    private static NonNegativeNum num(String value) {
+        return new NonNegativeNum(new BigDecimal(value));
+    }
+
+    @Test
+    public void testNormalForm() {
+        assertEquals(poly("2 + 2*x*y"), poly("x*y + y*x + 2"));
+        assertEquals(poly("(x + 1)*(x + 1)"), poly("x*x + 2*x + 1"));
+        assertNotEquals(poly("x*x + 2*x + 1"), poly("x*x + 2*x + 2"));
+        assertEquals(poly("x*x + 2*x + 1").hashCode(), poly("(x + 1)*(1 + x)").hashCode());
+        assertEquals("x*x+2*x+1", poly("(x + 1)*(x + 1)").toString());
+        assertEquals("x*y*y+2.5*x+3", poly("3 + 2.50*x + y*x*y").toString());
+    }
+
+    @Test
+    public void testConstants() {
+        assertEquals("0", poly("0*x + 0").toString());
+        assertEquals(Collections.emptyList(), poly("0*x*y").variables());
+        assertEquals(0, poly("0").size());
+        assertEquals(Expression.make(new BigDecimal("7.5")), poly("2.5 * 3").toExpression());
+    }
+
+    @Test
+    public void testVanishingVariable() {
+        Polynomial p = poly("x + y*0 + y*z*0");
+        assertEquals(Arrays.asList(new Variable("x")), p.variables());
+        assertEquals(poly("x"), p);
+    }
+
+    @Test
+    public void testManyVariables() {
+        Polynomial p = poly("a*b*c*d*e*f + f*e*d*c*b*a + a*f*f");
+        assertEquals(6, p.variables().size());
+        assertEquals(2, p.size());
+        assertEquals("2*a*b*c*d*e*f+a*f*f", p.toString());
+        assertEquals(poly("2*b*c*d*e*f + f*f"), p.differentiate(new Variable("a")));
+    }
+
+    @Test
+    public void testAddAndMultiplyDifferentVariables() {
+        assertEquals(poly("x + y"), poly("x").add(poly("y")));
+        assertEquals(poly("x*x + x*y + 3*x + 3*y"), poly("x + y").multiply(poly("x + 3")));
+        assertEquals(poly("0"), poly("x + y").multiply(poly("0")));
+        assertEquals(poly("2*x + 2*y"), poly("x + y").multiply(poly("2")));
+    }
+
+    @Test
+    public void testMultiplyCollectsTerms() {
+        Polynomial p = poly("x + y + 1");
+        Polynomial square = p.multiply(p);
+        assertEquals(6, square.size());
+        assertEquals(poly("(x + y + 1)*(x + y + 1)"), square);
+        assertEquals(poly("(x + y + 1)*(x + y + 1)*(x + y + 1)"), square.multiply(p));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testDegreeTooHigh() {
+        List<Expression> factors = new ArrayList<>();
+        for (int i = 0; i <= Polynomial.MAX_DEGREE; i ++) {
+            factors.add(Expression.make("x"));
+        }
+        Expression.productOf(factors).toPolynomial();
+    }
+
+    @Test
+    public void testDifferentiateMatchesExpression() {
+        Variable x = new Variable("x");
+        for (String input : Arrays.asList("3", "x", "y", "x*x*x*y + 2*x*(x + y) + 3", "(x + y)*(x*x + 1)*x")) {
+            Expression e = Expression.parse(input);
+            assertEquals(input, e.differentiate(x).toPolynomial(), e.toPolynomial().differentiate(x));
+        }
+        assertEquals(Collections.emptyList(), poly("x + 2").differentiate(x).variables());
+        assertEquals(poly("0"), poly("y").differentiate(x));
+    }
+
+    @Test
+    public void testSubstituteAndEvaluate() {
+        Map<Variable, NonNegativeNum> environment = new HashMap<>();
+        environment.put(new Variable("x"), num("1.5"));
+        environment.put(new Variable("w"), num("4"));
+        Expression e = Expression.parse("x*x*y + 2*x*(x + y) + y*y + 3");
+        assertEquals(e.simplify(environment).toPolynomial(), e.toPolynomial().substitute(environment));
+        assertEquals(e.toPolynomial(), e.toPolynomial().substitute(new HashMap<>()));
+
+        environment.put(new Variable("y"), num("2"));
+        assertEquals(e.simplify(environment), e.toPolynomial().evaluate(environment));
+        assertEquals(e.simplify(environment).toPolynomial(), e.toPolynomial().substitute(environment));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEvaluateMissingVariable() {
+        Map<Variable, NonNegativeNum> environment = new HashMap<>();
+        environment.put(new Variable("x"), num("1"));
+        poly("x*y").evaluate(environment);
+    }
+}